@@ -0,0 +1,74 @@
+package io.github.travisdowns.polyregex.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.travisdowns.polyregex.CaptureState;
+import io.github.travisdowns.polyregex.ParserBase;
+import io.github.travisdowns.polyregex.State;
+
+/**
+ * Benchmarks for the phases which happen before any text is matched: parsing the pattern into the base
+ * NFA, and cloning and backref-expanding that NFA as is done for every SubNFA in BackrefMatcher.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+public class CompileBenchmark {
+
+    @Param({"RUSSCOX", "DUPCHAR", "DOGSCATS"})
+    public PatternFamily family;
+
+    @Param({"16", "64", "256"})
+    public int n;
+
+    private String pattern, text;
+    private State start;
+    private CaptureState capstate;
+
+    @Setup
+    public void setup() {
+        pattern = family.pattern(n);
+        text = family.text(n);
+        start = ParserBase.doParse(pattern);
+        State.assignIds(start);
+        // a capstate where every group captures the whole text, the worst case for backref expansion
+        int groups = (int)State.allStates(start).stream().filter(s -> s.type == State.Type.LPAREN && s.c != 0).count();
+        int[] starts = new int[groups], ends = new int[groups];
+        for (int g = 0; g < groups; g++) {
+            ends[g] = text.length();
+        }
+        capstate = new CaptureState(starts, ends, text.length());
+    }
+
+    @Benchmark
+    public State doParse() {
+        return ParserBase.doParse(pattern);
+    }
+
+    @Benchmark
+    public State cloneGraph() {
+        return State.cloneGraph(start, State::new);
+    }
+
+    @Benchmark
+    public State cloneAndExpandBackrefs() {
+        // expandBackrefs modifies the graph in place, so it always needs a fresh copy to work on
+        State cloned = State.cloneGraph(start, State::new);
+        State.expandBackrefs(cloned, text, capstate, State::new);
+        return cloned;
+    }
+}
@@ -0,0 +1,51 @@
+package io.github.travisdowns.polyregex.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.travisdowns.polyregex.BackrefMatcher;
+import io.github.travisdowns.polyregex.Matcher;
+
+/**
+ * Benchmarks BackrefMatcher in eager mode, where all the SubNFAs are built up front. The RUSSCOX family
+ * isn't included since it has 2n captured groups, and so at least (n+2)^4n SubNFAs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EagerMatchBenchmark {
+
+    @Param({"DUPCHAR", "DOGSCATS"})
+    public PatternFamily family;
+
+    @Param({"4", "8", "16"})
+    public int n;
+
+    private String text;
+    private Matcher eager;
+
+    @Setup
+    public void setup() {
+        text = family.text(n);
+        eager = new BackrefMatcher(family.pattern(n), true);
+    }
+
+    @Benchmark
+    public boolean backrefEager() {
+        return eager.matches(text);
+    }
+}
@@ -0,0 +1,69 @@
+package io.github.travisdowns.polyregex.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.travisdowns.polyregex.BackrefMatcher;
+import io.github.travisdowns.polyregex.BacktrackMatcher;
+import io.github.travisdowns.polyregex.Matcher;
+import io.github.travisdowns.polyregex.PikeMatcher;
+
+/**
+ * Benchmarks of a full match call against an already compiled matcher, for each matcher
+ * implementation.
+ * <p>
+ * The eager BackrefMatcher creates O(n^2k) SubNFAs per match, so it is benchmarked separately,
+ * in {@link EagerMatchBenchmark}, over a much smaller range of sizes. The RUSSCOX family has its own
+ * benchmark too, {@link RussCoxBenchmark}, since its pattern grows with n.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MatchBenchmark {
+
+    @Param({"DUPCHAR", "DOGSCATS"})
+    public PatternFamily family;
+
+    @Param({"16", "32", "64"})
+    public int n;
+
+    private String text;
+    private Matcher lazy, pike, backtrack;
+
+    @Setup
+    public void setup() {
+        text = family.text(n);
+        lazy = new BackrefMatcher(family.pattern(n), false);
+        pike = new PikeMatcher(family.pattern(n));
+        backtrack = new BacktrackMatcher(family.pattern(n));
+    }
+
+    @Benchmark
+    public boolean backrefLazy() {
+        return lazy.matches(text);
+    }
+
+    @Benchmark
+    public boolean pike() {
+        return pike.matches(text);
+    }
+
+    @Benchmark
+    public boolean backtrack() {
+        return backtrack.matches(text);
+    }
+}
@@ -0,0 +1,57 @@
+package io.github.travisdowns.polyregex.benchmarks;
+
+import com.google.common.base.Strings;
+
+/**
+ * The families of pattern/text pairs the benchmarks are parameterized over. Each family
+ * generates a pattern and a matching text for a given size {@code n}.
+ */
+public enum PatternFamily {
+    /**
+     * The pattern from Russ Cox's timing tests (see timing/xtime): (a|b)? repeated n times followed by
+     * (a|b) repeated n times and then z, matched against n a's followed by z. Note that the size of the
+     * pattern grows with n, as well as the size of the text.
+     */
+    RUSSCOX {
+        @Override
+        public String pattern(int n) {
+            return Strings.repeat("(a|b)?", n) + Strings.repeat("(a|b)", n) + "z";
+        }
+
+        @Override
+        public String text(int n) {
+            return Strings.repeat("a", n) + "z";
+        }
+    },
+    /** a single captured character which must reappear at the end of the text, like (.).*\1 */
+    DUPCHAR {
+        @Override
+        public String pattern(int n) {
+            return "(.).*\\1";
+        }
+
+        @Override
+        public String text(int n) {
+            return "x" + Strings.repeat("y", Math.max(0, n - 2)) + "x";
+        }
+    },
+    /** the example from the README, (dogs|cats).*\1 anywhere in the line */
+    DOGSCATS {
+        @Override
+        public String pattern(int n) {
+            return ".*(dogs|cats).*\\1.*";
+        }
+
+        @Override
+        public String text(int n) {
+            String core = " dogs like dogs";
+            return core + Strings.repeat(" ", Math.max(0, n - core.length()));
+        }
+    };
+
+    /** the pattern for size n */
+    public abstract String pattern(int n);
+
+    /** a text of length (roughly) n which matches {@link #pattern(int)} */
+    public abstract String text(int n);
+}
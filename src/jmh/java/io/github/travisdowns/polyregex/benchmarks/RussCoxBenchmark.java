@@ -0,0 +1,73 @@
+package io.github.travisdowns.polyregex.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.travisdowns.polyregex.BackrefMatcher;
+import io.github.travisdowns.polyregex.BacktrackMatcher;
+import io.github.travisdowns.polyregex.Matcher;
+import io.github.travisdowns.polyregex.PikeMatcher;
+import io.github.travisdowns.polyregex.obsolete.OriginalMatcher;
+
+/**
+ * The in-process equivalent of timing/xtime: the {@link PatternFamily#RUSSCOX} pattern for each n,
+ * matched by each matcher. This is the only family OriginalMatcher supports, since it doesn't handle
+ * backrefs.
+ * <p>
+ * The pattern has 2n captured groups, so BackrefMatcher gets very slow very quickly here.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RussCoxBenchmark {
+
+    @Param({"2", "4", "6", "8"})
+    public int n;
+
+    private String text;
+    private Matcher original, lazy, pike, backtrack;
+
+    @Setup
+    public void setup() {
+        String pattern = PatternFamily.RUSSCOX.pattern(n);
+        text = PatternFamily.RUSSCOX.text(n);
+        original = new OriginalMatcher(pattern);
+        lazy = new BackrefMatcher(pattern, false);
+        pike = new PikeMatcher(pattern);
+        backtrack = new BacktrackMatcher(pattern);
+    }
+
+    @Benchmark
+    public boolean original() {
+        return original.matches(text);
+    }
+
+    @Benchmark
+    public boolean backrefLazy() {
+        return lazy.matches(text);
+    }
+
+    @Benchmark
+    public boolean pike() {
+        return pike.matches(text);
+    }
+
+    @Benchmark
+    public boolean backtrack() {
+        return backtrack.matches(text);
+    }
+}
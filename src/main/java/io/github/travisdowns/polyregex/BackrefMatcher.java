@@ -1,16 +1,31 @@
 package io.github.travisdowns.polyregex;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.IntStream;
 
 import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import io.github.travisdowns.polyregex.State.StateRef;
 import io.github.travisdowns.polyregex.State.Type;
 
 
@@ -18,6 +33,23 @@ public class BackrefMatcher implements Matcher {
     
     private static final boolean IS_EAGER    = Boolean.getBoolean("BackrefMatcher.eager");
     private static final int DEBUG_LEVEL     = Integer.getInteger("BackrefMatcher.debug", 0);
+    /**
+     * In lazy mode, the SubNFAs no longer used by any active state are evicted whenever the number of SubNFAs
+     * reaches twice the number left after the last eviction, but never below this size.
+     */
+    private static final int MIN_SWEEP_SIZE  = Integer.getInteger("BackrefMatcher.minSweepSize", 256);
+    /**
+     * The number of threads used to build the SubNFAs in eager mode, 0 to use every core. The default of 1
+     * builds them on the matching thread.
+     */
+    private static final int EAGER_THREADS   = Integer.getInteger("BackrefMatcher.eagerThreads", 1);
+    /** in a parallel eager build, ranges of at most this many SubNFAs are built by one task */
+    private static final int EAGER_TASK_SIZE = 16;
+    /**
+     * The number of helper threads which build predicted SubNFAs ahead of the step loop in lazy mode, see
+     * {@link BackrefRunner#prefetch(int)}. The default of 0 disables prefetching.
+     */
+    private static final int PREFETCH_THREADS = Integer.getInteger("BackrefMatcher.prefetchThreads", 0);
     
     /**
      * Pattern underlying this matcher, only used for display purposes (the compiled pattern is 
@@ -29,41 +61,178 @@ public class BackrefMatcher implements Matcher {
      * used during simulation.
      */
     private final State start;
+    /** the flat form of the unexpanded graph, used to look up base states by id */
+    private final Program prog;
+    /** the states of the unexpanded graph, indexed by id */
+    private final State[] baseStates;
     /** number of captured groups referenced by a backref (i.e., "unique backrefs") */
     private final int groupCount;
     /** if true, all the possible subNFA groups are calculated before matching even starts, really slow */ 
     private final boolean isEager;
+    /** the number of threads used to build the SubNFAs in eager mode, see {@link #EAGER_THREADS} */
+    private final int eagerThreads;
+    /** the number of groups in the pattern, including those which aren't tracked */
+    private final int patternGroups;
+    /**
+     * The groups whose spans are reported by {@link #matchResult(String)} and {@link #findResult(CharSequence, int)},
+     * in increasing order, and the capture state slot of each. They are tracked whether or not they are referenced,
+     * and are live at MATCH, so their spans are in the capture state of the thread which reaches it.
+     */
+    private final int[] captureGroups, captureSlots;
+    /** the slots of captureGroups, as a mask of {@link Program#groupBit(int)} */
+    private final int captureMask;
+    /** the number of prefetch threads in lazy mode, see {@link #PREFETCH_THREADS} */
+    private final int prefetchThreads;
+    /**
+     * If prefetching, for each state id the ids of the capturing (non-zero) paren states reachable from it by
+     * unlabeled arrows, otherwise null.
+     */
+    private final int[][] nextParens;
+    /**
+     * The prefetch threads, shared by every run of this matcher, created by the first run which prefetches and
+     * stopped by {@link #shutdown()}. The threads are daemons, so a matcher which is never shut down doesn't keep
+     * the JVM alive.
+     */
+    private ExecutorService prefetcher;
 
     /** instance of this class created for each match request, depends on the length of the input string */
     class BackrefRunner {
 
         final String text;
-        private final Map<CaptureState, SubNFA> capToSub = new HashMap<>();
+        /** every capture state seen while matching this text */
+        private final CaptureStatePool pool;
+        /**
+         * The SubNFAs, indexed by the id of their representative capture state: capture states with the same
+         * content share a SubNFA, see {@link CaptureInterner}. Null for ids which aren't representatives or
+         * whose SubNFA hasn't been created yet (or was evicted).
+         */
+        private SubNFA[] subs = new SubNFA[16];
+        /**
+         * The non-null entries of subs, in live[0, subCount), so a sweep only looks at the SubNFAs which exist
+         * rather than every id in the pool.
+         */
+        private SubNFA[] live = new SubNFA[16];
+        private int subCount;
+        /**
+         * In eager mode, the SubNFA for every capture state, indexed by the start + 1 and end + 1 of each group
+         * (see {@link #coordinates(int)}), otherwise null.
+         */
+        private final FlatHypercube<SubNFA> eagerSubs;
+        /** scratch space for the coordinates of a capture state in eagerSubs */
+        private final int[] coords = new int[2 * groupCount];
+        private final CaptureInterner interner;
+        /**
+         * When looking for the leftmost-longest match, the best match so far as the capture state id of the thread
+         * which reached MATCH, or -1, and its span. Threads which started after the best match are dropped.
+         */
+        private int bestCap = -1, bestStart = Integer.MAX_VALUE, bestEnd = -1;
+        /** the SubNFA for the capture state with every group unset, the only one with a copy of every state */
+        private final SubNFA shared;
+        /** the largest size reached by the addstate stack, for debugging */
         int maxdepth = 0;
+        /** the number of states created by the SubNFAs evicted so far, for debugging */
+        int materialized = 0;
+        /** the largest number of SubNFAs alive at once, and the number evicted, for debugging */
+        int peakSubs = 0, evicted = 0;
+        /** the matcher's prefetch threads, null if not prefetching */
+        private final ExecutorService prefetcher;
+        /**
+         * The SubNFAs being built by the prefetch threads, by representative id. Only touched by the matching
+         * thread, the prefetch threads just run the tasks.
+         */
+        private final Map<Integer, Future<SubNFA>> prefetched = new HashMap<>();
+        /** the number of prefetched SubNFAs which were used, and which were requested before they were ready */
+        int prefetchHits = 0, prefetchMisses = 0;
+        /** sweep the SubNFAs when there are this many */
+        private int sweepThreshold = MIN_SWEEP_SIZE;
+        /** the explicit stack used by addstate to follow unlabeled arrows, reused for every call */
+        private final ArrayDeque<SubNFA.StateEx> stack = new ArrayDeque<>();
+        /** the last list id handed out, each state list gets a new id every time it is cleared */
+        private int listgen = 0;
+        /** the double-buffered state lists, swapped after each step */
+        private StateList clist = new StateList(), nlist = new StateList();
 
-        SubNFA getSub(CaptureState capstate) {
-            SubNFA ret = capToSub.get(capstate);
+        /**
+         * Get the SubNFA for capstate, or for an equivalent capture state with the same content, creating it
+         * if needed.
+         */
+        SubNFA getSub(int cap) {
+            if (eagerSubs != null) {
+                SubNFA ret = eagerSubs.get(coordinates(cap));
+                checkState(ret != null, "sub for capstate not found in eager mode: %s", cap);
+                return ret;
+            }
+            int rep = rep(cap);
+            if (rep >= subs.length) {
+                subs = Arrays.copyOf(subs, Math.max(subs.length * 2, rep + 1));
+            }
+            SubNFA ret = subs[rep];
             if (ret == null) {
-                checkState(!isEager, "sub for capstate not found in eager mode: %s", capstate);
-                debug2("Creating SubNFA for captstate %s", capstate);
-                ret = new SubNFA(start, capstate);
-                capToSub.put(capstate, ret);
+                Future<SubNFA> f = prefetched.isEmpty() ? null : prefetched.remove(rep);
+                if (f != null && f.isDone()) {
+                    prefetchHits++;
+                    ret = Futures.getUnchecked(f);
+                } else {
+                    if (f != null) {
+                        // not ready yet, building it here with only the states we need is faster than waiting
+                        prefetchMisses++;
+                        f.cancel(false);
+                    }
+                    debug2("Creating SubNFA for captstate %s", pool.get(rep).str());
+                    ret = new SubNFA(rep, pool.get(rep), false);
+                }
+                addSub(ret);
             }
             return ret;
         }
 
+        /** add sub to subs and live, it must not be there already */
+        private void addSub(SubNFA sub) {
+            if (sub.cap >= subs.length) {
+                subs = Arrays.copyOf(subs, Math.max(subs.length * 2, sub.cap + 1));
+            }
+            subs[sub.cap] = sub;
+            if (subCount == live.length) {
+                live = Arrays.copyOf(live, live.length * 2);
+            }
+            live[subCount++] = sub;
+        }
+
+        /** the representative of capture state cap, see {@link CaptureInterner} */
+        private int rep(int cap) {
+            return interner.intern(cap);
+        }
+
         /**
          * The original NFA is duplicated once for each possible combination of start/end
          * positions for each match. Each duplicated NFA is held by a SubNFA.
+         * <p>
+         * The duplicates are made one state at a time, as they are reached: a state is only copied from the
+         * base graph the first time it is looked up by id, and its arrows still point to the base states
+         * until they are first followed (see {@link #next(StateEx, StateRef)}). A backref is only expanded
+         * into CHAR states when the BACKREF state itself is reached. So the work done tracks the states which are
+         * actually visited. In eager mode all the states are copied up front.
+         * <p>
+         * The capture-insensitive states (those where no group is live, see {@link Program#live}) behave the same
+         * way whatever the capture state, and {@link StateList#push(State)} moves them to the SubNFA for the
+         * capture state with every group unset (the shared SubNFA) anyway, so only the shared SubNFA has copies
+         * of them: the others look them up there.
          */
         private class SubNFA {
 
-            final StateEx start;
+            /** the id of the capture state in the pool, and the capture state itself */
+            final int cap;
             final CaptureState capstate;
 
             /** extended state capable of handling backrefs */
             private class StateEx extends State {
 
+                /**
+                 * The id of the last state list this state was added to, so membership in a list is just a
+                 * comparison against the list's id (like lastlist in Russ Cox's nfa.c).
+                 */
+                int lastlist;
+
                 public StateEx(State s) {
                     super(checkNotNull(s));
                 }
@@ -78,42 +247,97 @@ public class BackrefMatcher implements Matcher {
                 }
             }
 
-            final Map<Integer, StateEx> idToState = new HashMap<>();
+            /** the states of this SubNFA created so far, indexed by id */
+            final StateEx[] idToState = new StateEx[prog.size()];
+            /**
+             * The number of states created, for debugging. Counted per SubNFA rather than in the runner since
+             * SubNFAs are built concurrently in a parallel eager build.
+             */
+            int created;
 
-            SubNFA(State start, CaptureState capstate) {
+            /**
+             * @param capstate the capture state with id cap, passed in since the pool is only used by the
+             * matching thread and SubNFAs may be built on other threads
+             * @param materialize if true, create every state this SubNFA has its own copy of up front, as in eager
+             * mode
+             */
+            SubNFA(int cap, CaptureState capstate, boolean materialize) {
+                this.cap = cap;
                 this.capstate = capstate;
+                if (materialize) {
+                    for (int id = 0; id < prog.size(); id++) {
+                        if (capstate.isUnset() || prog.live[id] != 0) {
+                            state(id);
+                        }
+                    }
+                }
+            }
 
-                // duplicate the graph
-                StateEx cloned = State.cloneGraph(start, s -> new StateEx(s));
-
-                // replace the backrefs
-                State.expandBackrefs(cloned, text, capstate, StateEx::new);
-
-                // create the ID -> node mapping
-                List<StateEx> clonedList = State.allStates(cloned);
-
-                for (State s : clonedList) {
-                    checkState(s instanceof StateEx, "not a StateEx: %s", s);
-
-                    if (s.id >= 0) {
-                        checkState(idToState.put(s.id, (StateEx)s) == null);
+            /** the state with the given id, created if this is the first time it is needed */
+            StateEx state(int id) {
+                StateEx ret = idToState[id];
+                if (ret == null) {
+                    if (prog.live[id] == 0 && !capstate.isUnset()) {
+                        return shared.state(id);
+                    }
+                    State base = baseStates[id];
+                    if (base.type == Type.BACKREF) {
+                        // the expansion starts with a state with the id of the backref
+                        ret = (StateEx)State.expandBackref(base, text, capstate, StateEx::new);
                     } else {
-                        checkState(s.id == -1 && s.type == Type.CHAR, "state had invalid id %s : %s", s.id, s);
+                        ret = new StateEx(base);
                     }
+                    idToState[id] = ret;
+                    created++;
                 }
-
-                this.start = clonedList.get(0);
+                return ret;
             }
+        }
 
+        /**
+         * The state the arrow ref of s leads to: if it still points to a base state, the arrow is redirected to
+         * the corresponding state of the SubNFA of s, which is created if needed.
+         */
+        private SubNFA.StateEx next(SubNFA.StateEx s, StateRef ref) {
+            if (!(ref.s instanceof SubNFA.StateEx)) {
+                ref.s = s.getOuter().state(ref.s.id);
+            }
+            return (SubNFA.StateEx)ref.s;
         }
 
 
+        /**
+         * A list of states, which is allocated once per runner and reused for every step: the states themselves
+         * record the id of the last list they were added to, so clearing the list is just a matter of getting a
+         * new list id, and there is no per-step allocation once the states array has grown large enough.
+         * <p>
+         * The position where the match of each state started is kept in the parallel starts array. States are
+         * added in order of their starts, since a new match is only started after stepping the existing states,
+         * so when two paths reach the same state the earlier start wins, which is right for the leftmost-longest
+         * match since they have the same future.
+         */
         private class StateList {
-            final HashSet<SubNFA.StateEx> states, visited;
+            /** the retained states, in the order they were added */
+            SubNFA.StateEx[] states = new SubNFA.StateEx[16];
+            int[] starts = new int[16];
+            int size, visitedSize;
+            int listid;
+            /** true if the list contains a MATCH state */
+            boolean matched;
+            /** the match start of the states being added by addstate */
+            private int addStart;
 
             public StateList() {
-                this.states  = new HashSet<>();
-                this.visited = new HashSet<>();
+                clear();
+            }
+
+            /** remove all states from the list (and from the visited set) */
+            void clear() {
+                Arrays.fill(states, 0, size, null);
+                size = 0;
+                visitedSize = 0;
+                matched = false;
+                listid = ++listgen;
             }
             
             /**
@@ -125,7 +349,7 @@ public class BackrefMatcher implements Matcher {
              * @return count of contained states.
              */
             public int size() {
-                return states.size();
+                return size;
             }
             
             /**
@@ -133,147 +357,467 @@ public class BackrefMatcher implements Matcher {
              * @see #size()
              */
             public int visitedSize() {
-                return visited.size();
-            }
-
-            /* Add s to l, following unlabeled arrows. */
-            void addstate(State s_, int textIdx, int depth) {
-                checkNotNull(s_);
-                maxdepth = Math.max(depth, maxdepth);
-                SubNFA.StateEx s = (SubNFA.StateEx)s_;
-                if (visited.add(s)) {
-                    switch (s.type) {
-                    case SPLIT:
-                        /* follow unlabeled arrows */
-                        addstate(s.out.s, textIdx, depth + 1);
-                        addstate(s.out1.s, textIdx, depth + 1);
-                        break;
-                    case LPAREN:
-                    case RPAREN:
-                        checkState(s.out1 == null);
-                        if (s.c == 0) { // parens 0 is special, don't jump to a sub in that case
-                            addstate(s.out.s, textIdx, depth + 1);
-                        } else {
-                            // jump to a new subNFA reflecting starting a new capture at the current text position + 1
-                            CaptureState oldcap = s.getOuter().capstate;
-                            CaptureState newcap = s.type == Type.LPAREN ? oldcap.withStart(s.c, textIdx + 1) : oldcap.withEnd(s.c, textIdx + 1);
-                            SubNFA sub = getSub(newcap);
-                            checkState(sub != null, "sub was null for capstate %s", newcap);
-                            // normally we'd addstate(s.out.s), so now look up the corresponding state
-                            // in sub based on id
-                            int stateId = s.out.s.id;
-                            checkState(stateId >= 0);
-                            SubNFA.StateEx newstate = sub.idToState.get(stateId);
-                            checkState(newstate != null);
-                            addstate(newstate, textIdx, depth + 1);
-                        }
-                        break;
-                    case ANY:
-                    case CHAR:
-                    case MATCH:
-                        states.add(s);
-                        break;
-                    case INVALID:
-                        throw new RuntimeException("INVALID reached");
-                    case FORWARD:
-                        addstate(s.out.s, textIdx, depth + 1);
-                        break;
-                    case MATCHNOTHING:
-                        // this state is a dead end, never matches, stop here
-                        break;
-                    default:
-                        throw new RuntimeException("unhandled state type in addstate: " + s.type);
+                return visitedSize;
+            }
+
+            private void add(SubNFA.StateEx s) {
+                if (size == states.length) {
+                    states = Arrays.copyOf(states, size * 2);
+                    starts = Arrays.copyOf(starts, size * 2);
+                }
+                starts[size] = addStart;
+                states[size++] = s;
+            }
+
+            /* Add s to l, whose match started at matchStart, following unlabeled arrows. */
+            void addstate(State start, int textIdx, int matchStart) {
+                addStart = matchStart;
+                push(start);
+                while (!stack.isEmpty()) {
+                    maxdepth = Math.max(stack.size(), maxdepth);
+                    SubNFA.StateEx s = stack.pop();
+                    if (s.lastlist != listid) {
+                        s.lastlist = listid;
+                        visitedSize++;
+                        follow(s, textIdx);
                     }
                 }
             }
 
+            /* Process a newly visited state s, pushing any states reached by unlabeled arrows. */
+            private void follow(SubNFA.StateEx s, int textIdx) {
+                switch (s.type) {
+                case SPLIT:
+                    /* follow unlabeled arrows, pushed in reverse order so out is followed first */
+                    push(next(s, s.out1));
+                    push(next(s, s.out));
+                    break;
+                case LPAREN:
+                case RPAREN:
+                    checkState(s.out1 == null);
+                    if (s.c == 0) { // parens 0 is special, don't jump to a sub in that case
+                        push(next(s, s.out));
+                    } else {
+                        // jump to a new subNFA reflecting starting a new capture at the current text position + 1
+                        int oldcap = s.getOuter().cap;
+                        int newcap = s.type == Type.LPAREN ? pool.withStart(oldcap, s.c, textIdx + 1)
+                                : pool.withEnd(oldcap, s.c, textIdx + 1);
+                        SubNFA sub = getSub(newcap);
+                        // normally we'd follow s.out.s, so now look up the corresponding state
+                        // in sub based on id
+                        int stateId = prog.out[s.id];
+                        checkState(stateId >= 0);
+                        SubNFA.StateEx newstate = sub.state(stateId);
+                        checkState(newstate != null);
+                        push(newstate);
+                    }
+                    break;
+                case MATCH:
+                    matched = true;
+                    add(s);
+                    break;
+                case ANY:
+                case CHAR:
+                case RANGE:
+                    add(s);
+                    break;
+                case INVALID:
+                    throw new RuntimeException("INVALID reached");
+                case FORWARD:
+                    push(next(s, s.out));
+                    break;
+                case MATCHNOTHING:
+                    // this state is a dead end, never matches, stop here
+                    break;
+                default:
+                    throw new RuntimeException("unhandled state type in addstate: " + s.type);
+                }
+            }
+
+            /*
+             * Push s, first moving it to the SubNFA for the canonical capture state if s's capture state has
+             * any groups which are dead at s, so that equivalent states are only visited once.
+             */
+            private void push(State s) {
+                SubNFA.StateEx next = (SubNFA.StateEx)checkNotNull(s);
+                if (next.id >= 0) { // states inside an expanded backref have no id, but the group is live there anyway
+                    int capstate = next.getOuter().cap;
+                    int canonical = pool.withLive(capstate, prog.live[next.id]);
+                    if (canonical != capstate) {
+                        next = getSub(canonical).state(next.id);
+                    }
+                }
+                stack.push(next);
+            }
+
 
             /* Check whether state list contains a match. */
             boolean ismatch() {
-                return states.stream().anyMatch(s -> s.type == Type.MATCH);
+                return matched;
+            }
+
+            /* The index of the first MATCH state in the list, which has the earliest start, or -1 if there is none. */
+            int firstMatch() {
+                for (int i = 0; matched && i < size; i++) {
+                    if (states[i].type == Type.MATCH) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+
+            /* True if the list has a state other than MATCH whose match started at or before pos. */
+            boolean hasThreadStartedBy(int pos) {
+                for (int i = 0; i < size; i++) {
+                    if (states[i].type != Type.MATCH && starts[i] <= pos) {
+                        return true;
+                    }
+                }
+                return false;
             }
 
             @Override
             public String toString() {
-                return "states: " + Joiner.on(", ").join(states) + "\nvisited: " + Joiner.on(", ").join(visited);
+                return "states: " + Joiner.on(", ").join(Arrays.asList(states).subList(0, size))
+                        + "\nvisited: " + visitedSize;
             }
 
         }
 
         public BackrefRunner(String text) {
             this.text = text;
+            this.pool = new CaptureStatePool(groupCount, text.length());
+            this.interner = new CaptureInterner(text, pool, captureMask);
+            int unset = rep(pool.unset());
+            this.shared = new SubNFA(unset, pool.get(unset), isEager || prefetchThreads > 0);
+            addSub(shared);
+            this.prefetcher = prefetchThreads > 0 ? prefetcher() : null;
 
             if (isEager) {
-                // build the SubNFA list eagerly
-                int[] starts = new int[groupCount];
-                int[]   ends = new int[groupCount];
-                buildSubNFAs(0, starts, ends);
+                // build the SubNFA list eagerly: each start and end is -1 to text.length()
+                this.eagerSubs = new FlatHypercube<>(2 * groupCount, text.length() + 2);
+                buildSubNFAs();
+            } else {
+                this.eagerSubs = null;
             }
         }
 
-        private void buildSubNFAs(int groupIdx, int[] starts, int[] ends) {
-            if (groupIdx == groupCount) {
-                CaptureState cstate = new CaptureState(starts.clone(), ends.clone(), text.length());
-                capToSub.put(cstate, new SubNFA(start, cstate));
+        /**
+         * Fill eagerSubs with a SubNFA for every capture state, shared between those with the same content.
+         * <p>
+         * The representative of each capture state is found first, on this thread, since the pool and interner
+         * aren't thread-safe. Building the SubNFAs for the distinct representatives is most of the work, and
+         * each one only reads the base graph, the text, its capture state and the shared SubNFA (which is already
+         * complete), so with more than one eager thread they are built in parallel in a {@link ForkJoinPool}.
+         */
+        private void buildSubNFAs() {
+            int[] starts = new int[groupCount], ends = new int[groupCount];
+            int[] cellReps = new int[eagerSubs.size()];
+            IntStack newReps = new IntStack();
+            BitSet isNew = new BitSet();
+            for (int i = 0; i < eagerSubs.size(); i++) {
+                eagerSubs.indices(i, coords);
+                for (int g = 0; g < groupCount; g++) {
+                    starts[g] = coords[2 * g] - 1;
+                    ends  [g] = coords[2 * g + 1] - 1;
+                }
+                int rep = rep(pool.intern(new CaptureState(starts.clone(), ends.clone(), text.length())));
+                if (rep >= subs.length) {
+                    subs = Arrays.copyOf(subs, Math.max(subs.length * 2, rep + 1));
+                }
+                if (subs[rep] == null && !isNew.get(rep)) {
+                    isNew.set(rep);
+                    newReps.push(rep);
+                }
+                cellReps[i] = rep;
+            }
+
+            int[] reps = new int[newReps.size()];
+            CaptureState[] capstates = new CaptureState[reps.length];
+            for (int i = reps.length - 1; i >= 0; i--) {
+                reps[i] = newReps.pop();
+                capstates[i] = pool.get(reps[i]); // looked up here, the pool isn't thread-safe
+            }
+            SubNFA[] built = new SubNFA[reps.length];
+            int threads = eagerThreads == 0 ? Runtime.getRuntime().availableProcessors() : eagerThreads;
+            if (threads <= 1) {
+                for (int i = 0; i < reps.length; i++) {
+                    built[i] = new SubNFA(reps[i], capstates[i], true);
+                }
             } else {
-                for (int s = -1; s <= text.length(); s++) {
-                    starts[groupIdx] = s;
-                    for (int e = -1; e <= text.length(); e++) {
-                        ends[groupIdx] = e;
-                        buildSubNFAs(groupIdx + 1, starts, ends);
+                ForkJoinPool fjp = new ForkJoinPool(threads);
+                try {
+                    fjp.invoke(new BuildTask(reps, capstates, built, 0, reps.length));
+                } finally {
+                    fjp.shutdown();
+                }
+            }
+            for (SubNFA sub : built) {
+                addSub(sub);
+            }
+
+            for (int i = 0; i < cellReps.length; i++) {
+                eagerSubs.setAt(i, subs[cellReps[i]]);
+            }
+            debug("Built %s SubNFAs for %s capture states with %s threads", subCount, eagerSubs.size(), threads);
+        }
+
+        /** builds the SubNFAs for reps[lo, hi) into built, splitting the range until it is small */
+        private class BuildTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            final int[] reps;
+            final CaptureState[] capstates;
+            final SubNFA[] built;
+            final int lo, hi;
+
+            BuildTask(int[] reps, CaptureState[] capstates, SubNFA[] built, int lo, int hi) {
+                this.reps = reps;
+                this.capstates = capstates;
+                this.built = built;
+                this.lo = lo;
+                this.hi = hi;
+            }
+
+            @Override
+            protected void compute() {
+                if (hi - lo <= EAGER_TASK_SIZE) {
+                    for (int i = lo; i < hi; i++) {
+                        built[i] = new SubNFA(reps[i], capstates[i], true);
                     }
+                } else {
+                    int mid = (lo + hi) >>> 1;
+                    invokeAll(new BuildTask(reps, capstates, built, lo, mid),
+                            new BuildTask(reps, capstates, built, mid, hi));
                 }
             }
         }
 
-        /* Compute initial state list */
-        private StateList startlist() {
-            StateList l = new StateList();
-            int[] indexes = new int[groupCount];
-            Arrays.fill(indexes, -1);
-            l.addstate(getSub(new CaptureState(indexes, indexes,text.length())).start, -1, 1);
+        /** the coordinates of capture state cap in eagerSubs, in a scratch array */
+        private int[] coordinates(int cap) {
+            for (int g = 1; g <= groupCount; g++) {
+                coords[2 * (g - 1)]     = pool.start(cap, g) + 1;
+                coords[2 * (g - 1) + 1] = pool.end(cap, g) + 1;
+            }
+            return coords;
+        }
+
+        /* Compute initial state list, into clist */
+        private void startlist(int from) {
+            StateList l = clist;
+            l.clear();
+            l.addstate(shared.state(prog.start), from - 1, from);
             debug("Created starting state list with %s states (%s visited)", l.size(), l.visitedSize());
             dumpStates(l);
-            return l;
         }
 
 
         /*
-         * Step the NFA from the states in clist past the character c, returns the new NFA state list.
+         * Step the NFA from the states in clist past the character c into nlist, then swap the lists so the new
+         * states are in clist.
          */
-        private StateList step(StateList clist, char c, int textIdx) {
-            StateList nlist = new StateList();
-            for (State s : clist.states) {
+        private void step(char c, int textIdx) {
+            nlist.clear();
+            for (int i = 0; i < clist.size; i++) {
+                SubNFA.StateEx s = clist.states[i];
+                if (clist.starts[i] > bestStart) {
+                    continue; // started after the best match found so far, so can't beat it
+                }
                 if (s.matches(c)) {
-                    nlist.addstate(s.out.s, textIdx, 1);
+                    nlist.addstate(next(s, s.out), textIdx, clist.starts[i]);
                 }
             }
             debug("Processed character %c at position %d: %s current states (%s visited)",
                     c, textIdx, nlist.size(), nlist.visitedSize());
             dumpStates(nlist);
-            return nlist;
+            StateList temp = clist;
+            clist = nlist;
+            nlist = temp;
         }
 
         /* Run NFA to determine whether it matches s. */
         public boolean matches() {
-            boolean startlistOK = false;
+            return run(false, false, 0);
+        }
+
+        /* Run NFA to determine whether some substring of the text matches. */
+        public boolean find() {
+            return run(true, false, 0);
+        }
+
+        /**
+         * Run the NFA over the text as for {@link #matches()} or, if find is true, look for the leftmost-longest
+         * match starting at or after from, and report its span and those of the captured groups.
+         */
+        CaptureResult result(boolean find, int from) {
+            if (!run(find, true, from)) {
+                return null;
+            }
+            int[] starts = new int[patternGroups + 1], ends = new int[patternGroups + 1];
+            Arrays.fill(starts, CaptureResult.NOT_CAPTURED);
+            Arrays.fill(ends, CaptureResult.NOT_CAPTURED);
+            starts[0] = bestStart;
+            ends  [0] = bestEnd;
+            for (int i = 0; i < captureGroups.length; i++) {
+                starts[captureGroups[i]] = pool.start(bestCap, captureSlots[i]);
+                ends  [captureGroups[i]] = pool.end(bestCap, captureSlots[i]);
+            }
+            return new CaptureResult(text, starts, ends);
+        }
+
+        /**
+         * Run the NFA over the text from position from, starting a new match at every position if find is true.
+         * If longest is true, a find doesn't stop at the first MATCH, but goes on until no state can lead to a
+         * better match, and the best match is recorded.
+         */
+        private boolean run(boolean find, boolean longest, int from) {
             try {
-                StateList list = startlist();
-                startlistOK = true;
-                for (int i = 0; i < text.length(); i++) {
-                    char c = text.charAt(i);
-                    list = step(list, c, i);
+                return runSteps(find, longest, from);
+            } finally {
+                // the threads are kept for the next run, but its predictions are no use to it
+                for (Future<SubNFA> f : prefetched.values()) {
+                    f.cancel(false);
+                }
+                prefetched.clear();
+            }
+        }
+
+        private boolean runSteps(boolean find, boolean longest, int from) {
+            startlist(from);
+            for (int i = from; ; i++) {
+                if (find && longest) {
+                    // keep going until no thread could lead to a better match
+                    updateBest(i);
+                    if (bestCap != -1 && !clist.hasThreadStartedBy(bestStart)) {
+                        break;
+                    }
+                } else if (find && clist.ismatch()) {
+                    break;
+                }
+                if (i == text.length()) {
+                    break;
+                }
+                char c = text.charAt(i);
+                if (prefetcher != null) {
+                    prefetch(i);
+                }
+                step(c, i);
+                if (find && bestCap == -1) {
+                    // a new match can start after every character, until a match is found
+                    clist.addstate(shared.state(prog.start), i, i + 1);
+                }
+                peakSubs = Math.max(peakSubs, subCount);
+                if (!isEager && subCount >= sweepThreshold) {
+                    sweep(i);
+                }
+            }
+            if (prefetcher != null) {
+                debug("Prefetch: %s hits, %s not ready", prefetchHits, prefetchMisses);
+            }
+            if (DEBUG_LEVEL >= 1) {
+                int created = materialized;
+                for (int i = 0; i < subCount; i++) {
+                    created += live[i].created;
                 }
-                return list.ismatch();
-            } catch (StackOverflowError e) {
-                System.err.println("Died during " + (startlistOK ? "startlist() generation" : "step()") + ", maxdepth " + maxdepth);
-                throw e;
+                debug("Finished matching, max addstate stack depth %s, %s SubNFAs (peak %s, %s evicted), %s states "
+                        + "created, %s capture states", maxdepth, subCount, peakSubs, evicted, created, pool.size());
+            }
+            if (!find) {
+                updateBest(text.length());
+            }
+            return find && longest ? bestCap != -1 : clist.ismatch();
+        }
+
+        /*
+         * Update the best match from the first MATCH state in clist, which has the earliest start: a match which
+         * starts no later than the best so far is either to its left, or longer, since it ends at textIdx.
+         */
+        private void updateBest(int textIdx) {
+            int m = clist.firstMatch();
+            if (m != -1 && clist.starts[m] <= bestStart) {
+                bestCap = clist.states[m].getOuter().cap;
+                bestStart = clist.starts[m];
+                bestEnd = textIdx;
             }
         }
         
+        /**
+         * Before stepping past the character at textIdx, predict which SubNFAs the step will jump to, and start
+         * building any which don't exist yet on the prefetch threads, so {@link #getSub(int)} will usually find them
+         * ready. The prediction takes each state in clist which matches the character, and each capturing paren
+         * reachable by unlabeled arrows from where it leads (see {@link BackrefMatcher#nextParens}), and applies
+         * that paren to the state's capture state, as {@link StateList#follow} would. Jumps through more than one
+         * paren aren't predicted, and a SubNFA which turns out not to be needed is just wasted work on the helper
+         * thread. Predictions not used by the end of the step are dropped.
+         */
+        private void prefetch(int textIdx) {
+            for (Future<SubNFA> f : prefetched.values()) {
+                f.cancel(false);
+            }
+            prefetched.clear();
+            char c = text.charAt(textIdx);
+            for (int i = 0; i < clist.size; i++) {
+                SubNFA.StateEx s = clist.states[i];
+                if (!s.matches(c)) {
+                    continue;
+                }
+                int next = s.out.s.id;
+                if (next < 0) {
+                    continue; // inside an expanded backref, no parens until the end
+                }
+                int cap = s.getOuter().cap;
+                for (int paren : nextParens[next]) {
+                    int g = prog.data[paren];
+                    int newcap;
+                    if (prog.op[paren] == Program.LPAREN) {
+                        newcap = pool.withStart(cap, g, textIdx + 1);
+                    } else if (pool.start(cap, g) != -1) {
+                        newcap = pool.withEnd(cap, g, textIdx + 1);
+                    } else {
+                        continue;
+                    }
+                    int rep = rep(pool.withLive(newcap, prog.live[prog.out[paren]]));
+                    if ((rep >= subs.length || subs[rep] == null) && !prefetched.containsKey(rep)) {
+                        CaptureState capstate = pool.get(rep);
+                        prefetched.put(rep, prefetcher.submit(() -> new SubNFA(rep, capstate, true)));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Evict every SubNFA which has no state in the current state list, except the shared one. Nothing else
+         * can lead to their states: arrows only lead to states in the same SubNFA or the shared one, and jumps to
+         * other SubNFAs go through {@link #getSub(int)}, which just creates a new SubNFA if the one for
+         * the capture state was evicted. The capture states stay in the pool, which is much smaller than the
+         * SubNFAs built for them.
+         */
+        private void sweep(int textIdx) {
+            Set<SubNFA> active = Collections.newSetFromMap(new IdentityHashMap<>());
+            active.add(shared);
+            for (int i = 0; i < clist.size; i++) {
+                active.add(clist.states[i].getOuter());
+            }
+            int before = subCount;
+            subCount = 0;
+            for (int i = 0; i < before; i++) {
+                SubNFA sub = live[i];
+                if (active.contains(sub)) {
+                    live[subCount++] = sub;
+                } else {
+                    materialized += sub.created;
+                    subs[sub.cap] = null;
+                }
+            }
+            Arrays.fill(live, subCount, before, null);
+            evicted += before - subCount;
+            sweepThreshold = Math.max(MIN_SWEEP_SIZE, 2 * subCount);
+            debug("Swept SubNFAs at position %s: %s before, %s after", textIdx, before, subCount);
+        }
+
         private void dumpStates(StateList l) {
-            for (SubNFA.StateEx s : l.states) {
-                debug2("  %s", s);
+            for (int i = 0; i < l.size; i++) {
+                debug2("  %s", l.states[i]);
             }
         }
     }
@@ -285,28 +829,125 @@ public class BackrefMatcher implements Matcher {
     }
 
     public BackrefMatcher(String pattern, boolean isEager) {
-        this(pattern, ParserBase.doParse(pattern), isEager);
+        this(pattern, isEager, EAGER_THREADS);
     }
-    
+
+    /**
+     * @param eagerThreads the number of threads used to build the SubNFAs in eager mode, or 0 to use one per core
+     */
+    public BackrefMatcher(String pattern, boolean isEager, int eagerThreads) {
+        this(pattern, isEager, eagerThreads, PREFETCH_THREADS);
+    }
+
+    /**
+     * @param eagerThreads the number of threads used to build the SubNFAs in eager mode, or 0 to use one per core
+     * @param prefetchThreads the number of threads which build predicted SubNFAs in lazy mode, or 0 to disable
+     * prefetching
+     */
+    public BackrefMatcher(String pattern, boolean isEager, int eagerThreads, int prefetchThreads) {
+        this(pattern, ParserBase.doParse(pattern), isEager, eagerThreads, prefetchThreads);
+    }
+
+    BackrefMatcher(String pattern, State start) {
+        this(pattern, start, IS_EAGER);
+    }
+
     BackrefMatcher(String pattern, State start, boolean isEager) {
+        this(pattern, start, isEager, EAGER_THREADS, PREFETCH_THREADS);
+    }
+
+    BackrefMatcher(String pattern, State start, boolean isEager, int eagerThreads, int prefetchThreads) {
+        this(pattern, start, isEager, eagerThreads, prefetchThreads, new int[0]);
+    }
+
+    /**
+     * A matcher which also tracks the given groups, so their spans are reported by {@link #matchResult(String)}
+     * and {@link #findResult(CharSequence, int)}. Each group tracked costs states while matching, since threads
+     * which captured different spans for it can't be merged. At most 9 groups can be tracked, counting those
+     * referenced by a backref.
+     */
+    public BackrefMatcher(String pattern, int[] captureGroups) {
+        this(pattern, ParserBase.doParse(pattern), captureGroups);
+    }
+
+    BackrefMatcher(String pattern, State start, int[] captureGroups) {
+        this(pattern, start, IS_EAGER, EAGER_THREADS, PREFETCH_THREADS, captureGroups);
+    }
+
+    private BackrefMatcher(String pattern, State start, boolean isEager, int eagerThreads, int prefetchThreads,
+            int[] captureGroups) {
         debug("Creating %s BackrefMatcher for pattern %s", isEager ? "eager" : "lazy", pattern);
+        checkArgument(eagerThreads >= 0, "negative thread count %s", eagerThreads);
+        checkArgument(prefetchThreads >= 0, "negative thread count %s", prefetchThreads);
         this.pattern = pattern;
-        this.start = start;
         this.isEager = isEager;
+        this.eagerThreads = eagerThreads;
+        this.prefetchThreads = isEager ? 0 : prefetchThreads;
+        this.patternGroups = State.groupCount(start);
+        debug("Got %s captured groups", patternGroups);
+        this.captureGroups = Arrays.stream(captureGroups).distinct().sorted().toArray();
+        for (int g : this.captureGroups) {
+            checkArgument(g >= 1 && g <= patternGroups, "no group %s in pattern %s", g, pattern);
+        }
+        // only the referenced groups and those asked for get a slot in the capture state
+        int[] kept = IntStream.concat(Arrays.stream(State.referencedGroups(start)), Arrays.stream(this.captureGroups))
+                .distinct().sorted().toArray();
+        checkArgument(kept.length <= 9, "can't track more than 9 groups in pattern %s", pattern);
+        start = State.keepGroups(start, kept);
+        this.groupCount = kept.length;
+        debug("Got %s tracked groups", groupCount);
+        this.captureSlots = Arrays.stream(this.captureGroups).map(g -> Arrays.binarySearch(kept, g) + 1).toArray();
+        this.captureMask = Arrays.stream(captureSlots).map(Program::groupBit).reduce(0, (a, b) -> a | b);
+        this.start = start;
         List<State> allStates = State.allStates(start);
         debug("Got %s total unexpanded states", allStates.size());
-        int groupCount = (int)allStates.stream().filter(s -> s.type == Type.LPAREN).count();
-        if (allStates.get(0).type == Type.LPAREN) {
-            groupCount--; // don't count outer \0 group
-        }
-        this.groupCount = groupCount;
-        debug("Got %s unique captured groups", groupCount);
         State.assignIds(start);
-        debug2("Base NFA States:\n-------------------------\n" + State.printStates(start)
-                + "-------------------------\n");
+        // the tracked groups are part of the result, so they aren't dead at MATCH
+        this.prog = Program.compile(start, captureMask);
+        this.baseStates = new State[prog.size()];
+        for (State s : allStates) {
+            baseStates[s.id] = s;
+        }
+        debug("Got %s capture-sensitive states", Arrays.stream(prog.live).filter(l -> l != 0).count());
+        this.nextParens = this.prefetchThreads > 0 ? findNextParens(prog) : null;
+        if (DEBUG_LEVEL >= 2) { // printStates is expensive, only call it when needed
+            debug2("Base NFA States:\n-------------------------\n" + State.printStates(start)
+                    + "-------------------------\n");
+        }
     }
 
 
+    /** for each state, the capturing parens reachable by unlabeled arrows, stopping at the first paren on each path */
+    private static int[][] findNextParens(Program prog) {
+        int[][] ret = new int[prog.size()][];
+        SparseSet seen = new SparseSet(prog.size());
+        IntStack stack = new IntStack(), parens = new IntStack();
+        for (int from = 0; from < prog.size(); from++) {
+            seen.clear();
+            stack.push(from);
+            while (!stack.isEmpty()) {
+                int s = stack.pop();
+                if (!seen.add(s)) {
+                    continue;
+                }
+                int op = prog.op[s];
+                if ((op == Program.LPAREN || op == Program.RPAREN) && prog.data[s] != 0) {
+                    parens.push(s);
+                } else if (op == Program.SPLIT) {
+                    stack.push(prog.out[s]);
+                    stack.push(prog.out1[s]);
+                } else if (op == Program.FORWARD || op == Program.LPAREN || op == Program.RPAREN) {
+                    stack.push(prog.out[s]);
+                }
+            }
+            ret[from] = new int[parens.size()];
+            for (int i = 0; !parens.isEmpty(); i++) {
+                ret[from][i] = parens.pop();
+            }
+        }
+        return ret;
+    }
+
     @Override
     /* Run NFA to determine whether it matches s. */
     public boolean matches(String text) {
@@ -314,6 +955,60 @@ public class BackrefMatcher implements Matcher {
         return new BackrefRunner(text).matches();
     }
 
+    @Override
+    public boolean find(String text) {
+        debug("Searching text %s for pattern %s", text, pattern);
+        return new BackrefRunner(text).find();
+    }
+
+    /**
+     * Match the whole text, like {@link #matches(String)}, and report the span of each group this matcher was asked
+     * to track, see {@link #BackrefMatcher(String, int[])}.
+     * <p>
+     * The spans are those carried by the capture state of the highest priority thread to reach MATCH, so there
+     * is no second pass over the text.
+     *
+     * @return the result, or null if the text doesn't match
+     */
+    public CaptureResult matchResult(String text) {
+        debug("Matching text %s against pattern %s with captures", text, pattern);
+        return new BackrefRunner(text).result(false, 0);
+    }
+
+    /**
+     * Find the leftmost-longest match in text which starts at or after from, like grep -o, and report its span
+     * and that of each group this matcher was asked to track, see {@link #matchResult(String)}. The start of the
+     * match is carried along with each state, so a single run finds it.
+     *
+     * @return the result, or null if there is no match
+     */
+    @Override
+    public CaptureResult findResult(CharSequence text, int from) {
+        checkElementIndex(from, text.length() + 1);
+        debug("Searching text %s from %s for pattern %s with captures", text, from, pattern);
+        return new BackrefRunner(text.toString()).result(true, from);
+    }
+
+    /** the prefetch threads, created if this is the first run to use them since the last {@link #shutdown()} */
+    private synchronized ExecutorService prefetcher() {
+        if (prefetcher == null) {
+            prefetcher = Executors.newFixedThreadPool(prefetchThreads,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("prefetch-%d").build());
+        }
+        return prefetcher;
+    }
+
+    /**
+     * Stop the prefetch threads, if any, once the runs in progress have finished with them. The matcher can still
+     * be used afterwards, and the next run which prefetches starts new threads.
+     */
+    public synchronized void shutdown() {
+        if (prefetcher != null) {
+            prefetcher.shutdown();
+            prefetcher = null;
+        }
+    }
+
 
     public static boolean matches(String pattern, String text) {
         return new BackrefMatcher(pattern).matches(text); 
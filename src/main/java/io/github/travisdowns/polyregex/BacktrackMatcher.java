@@ -0,0 +1,260 @@
+package io.github.travisdowns.polyregex;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+
+/**
+ * A backtracking matcher with memoization, as described in the "Backtracking with memoizing" section
+ * of the README.
+ * <p>
+ * The matcher walks the base NFA depth-first, trying the out arrow of each SPLIT before the out1 arrow,
+ * like a conventional backtracking engine. Every (state, text position, capture state) configuration
+ * it visits is recorded, and a configuration is never explored twice: the outcome of exploring a
+ * configuration depends only on the configuration itself, so if we are back at one we've already seen,
+ * then it either already failed or is still being explored further up the stack. Either way, there's
+ * nothing new to find.
+ * <p>
+ * Only the spans of groups that are referenced by some backref are part of the configuration, since
+ * the other groups can't affect the outcome (see {@link State#removeUnreferencedGroups(State)}). There are at most O(m * n * n^2k) configurations (for m states, text length n and k
+ * referenced groups), so the running time is polynomial, but on most inputs only a tiny fraction of
+ * them is visited.
+ * <p>
+ * {@link #find(String)} runs the same search from each start position in turn, accepting at MATCH wherever it is
+ * reached. The visited configurations are kept from one start position to the next: whether MATCH can be reached
+ * from a configuration doesn't depend on where the search started, and each search runs to completion before the
+ * next starts, so every configuration visited by an earlier search is known to fail.
+ * <p>
+ * {@link #findResult(CharSequence, int)} does the same, except that the search from the first start position with a
+ * match doesn't stop at MATCH but goes on to visit every configuration it can reach, to find the longest match.
+ */
+public class BacktrackMatcher implements Matcher {
+
+    private static final int DEBUG_LEVEL = Integer.getInteger("BacktrackMatcher.debug", 0);
+
+    /** pattern underlying this matcher, only used for display purposes */
+    private final String pattern;
+    /** the base NFA */
+    private final Program prog;
+    /** number of captured groups referenced by a backref, the only groups tracked in the capture state */
+    private final int groupCount;
+    /** a BitSet can't index past this, so a key range any larger always uses the hashed memo */
+    private static final long MAX_BITSET_KEYS = Integer.MAX_VALUE;
+    /** the largest key range for which the bitset memo is used, see {@link BacktrackRunner#visitedBits} */
+    private final long maxBitsetKeys;
+
+    /** a configuration waiting to be explored */
+    private static final class Config {
+        /** the id of the base state */
+        final int state;
+        final int pos;
+        /** the id of the capture state in the runner's {@link CaptureStatePool} */
+        final int capstate;
+
+        Config(int state, int pos, int capstate) {
+            this.state = state;
+            this.pos = pos;
+            this.capstate = capstate;
+        }
+    }
+
+    /** instance of this class created for each match request */
+    private class BacktrackRunner {
+
+        final String text;
+        /** if true, MATCH is accepted at any position, not just at the end of the text */
+        final boolean find;
+        /** if true, a search doesn't stop at MATCH, but records the longest match in end */
+        final boolean longest;
+        /** the end of the longest match found by the last search, or -1 */
+        int end = -1;
+        final Deque<Config> stack = new ArrayDeque<>();
+
+        /** every capture state seen, whose dense ids are used to make memo keys */
+        final CaptureStatePool pool;
+        /** the number of (pos, state id) keys, the memo key range for a single capture state */
+        final long keys;
+        /**
+         * The visited configurations: when no group is referenced there is only ever one capture
+         * state and we use a bitset indexed by (pos, state id), otherwise a hash set of
+         * (capstate id, pos, state id) keys. The hash set is also used when there are too many
+         * (pos, state id) keys for a bitset to index.
+         */
+        final BitSet visitedBits;
+        final LongHashSet visitedSet;
+
+        BacktrackRunner(String text, boolean find, boolean longest) {
+            this.text = text;
+            this.find = find;
+            this.longest = longest;
+            this.pool = new CaptureStatePool(groupCount, text.length());
+            this.keys = (long)(text.length() + 1) * prog.size();
+            if (groupCount == 0 && keys <= maxBitsetKeys) {
+                this.visitedBits = new BitSet();
+                this.visitedSet = null;
+            } else {
+                debug("Using hashed memo for %s groups and %s keys", groupCount, keys);
+                this.visitedBits = null;
+                this.visitedSet = new LongHashSet();
+            }
+        }
+
+        /** mark the configuration visited, returns false if it was already visited */
+        boolean visit(Config c) {
+            long key = (long)c.pos * prog.size() + c.state;
+            if (visitedBits != null) {
+                if (visitedBits.get((int)key)) {
+                    return false;
+                }
+                visitedBits.set((int)key);
+                return true;
+            } else {
+                return visitedSet.add(c.capstate * keys + key);
+            }
+        }
+
+        /* Push the configuration, after resetting any groups which are dead at s so equivalent configurations merge. */
+        void push(int s, int pos, int capstate) {
+            stack.push(new Config(s, pos, pool.withLive(capstate, prog.live[s])));
+        }
+
+        public boolean matches() {
+            return search(0);
+        }
+
+        public boolean find() {
+            for (int pos = 0; pos <= text.length(); pos++) {
+                if (search(pos)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public CaptureResult findResult(int from) {
+            for (int pos = from; pos <= text.length(); pos++) {
+                if (search(pos)) {
+                    return new CaptureResult(text, pos, end);
+                }
+            }
+            return null;
+        }
+
+        /* Search for a match starting at position start. */
+        private boolean search(int start) {
+            push(prog.start, start, pool.unset());
+            long visits = 0;
+            while (!stack.isEmpty()) {
+                Config c = stack.pop();
+                if (!visit(c)) {
+                    continue;
+                }
+                visits++;
+                int s = c.state, data = prog.data[s];
+                switch (prog.op[s]) {
+                case Program.MATCH:
+                    if (longest) {
+                        end = Math.max(end, c.pos);
+                    } else if (find || c.pos == text.length()) {
+                        debug("Matched after %s visits, %s capture states", visits, pool.size());
+                        return true;
+                    }
+                    break;
+                case Program.CHAR:
+                case Program.ANY:
+                case Program.RANGE:
+                    if (c.pos < text.length() && prog.matches(s, text.charAt(c.pos))) {
+                        push(prog.out[s], c.pos + 1, c.capstate);
+                    }
+                    break;
+                case Program.SPLIT:
+                    // pushed in reverse order so out is explored first
+                    push(prog.out1[s], c.pos, c.capstate);
+                    push(prog.out [s], c.pos, c.capstate);
+                    break;
+                case Program.FORWARD:
+                    push(prog.out[s], c.pos, c.capstate);
+                    break;
+                case Program.LPAREN:
+                case Program.RPAREN:
+                    if (data == 0) {
+                        push(prog.out[s], c.pos, c.capstate);
+                    } else {
+                        int newcap = prog.op[s] == Program.LPAREN ?
+                                pool.withStart(c.capstate, data, c.pos) : pool.withEnd(c.capstate, data, c.pos);
+                        push(prog.out[s], c.pos, newcap);
+                    }
+                    break;
+                case Program.BACKREF:
+                    int capstart = pool.start(c.capstate, data), capend = pool.end(c.capstate, data);
+                    // an uncaptured group never matches (see MATCHNOTHING in State)
+                    if (capend != -1) {
+                        int len = capend - capstart;
+                        if (c.pos + len <= text.length() && text.regionMatches(c.pos, text, capstart, len)) {
+                            push(prog.out[s], c.pos + len, c.capstate);
+                        }
+                    }
+                    break;
+                default:
+                    throw new RuntimeException("unhandled state type in matches: " + prog.type(s));
+                }
+            }
+            if (end != -1) {
+                debug("Longest match from position %s ends at %s after %s visits, %s capture states", start, end,
+                        visits, pool.size());
+                return true;
+            }
+            debug("Failed from position %s after %s visits, %s capture states", start, visits, pool.size());
+            return false;
+        }
+    }
+
+    public BacktrackMatcher(String pattern) {
+        this(pattern, ParserBase.doParse(pattern));
+    }
+
+    BacktrackMatcher(String pattern, State start) {
+        this(pattern, start, MAX_BITSET_KEYS);
+    }
+
+    /** a matcher which uses the hashed memo for texts with more than maxBitsetKeys (pos, state id) keys */
+    BacktrackMatcher(String pattern, State start, long maxBitsetKeys) {
+        debug("Creating BacktrackMatcher for pattern %s", pattern);
+        this.pattern = pattern;
+        this.maxBitsetKeys = Math.min(maxBitsetKeys, MAX_BITSET_KEYS);
+        debug("Got %s captured groups", State.groupCount(start));
+        start = State.removeUnreferencedGroups(start);
+        this.groupCount = State.referencedGroups(start).length;
+        debug("Got %s unique referenced groups", groupCount);
+        State.assignIds(start);
+        this.prog = Program.compile(start);
+    }
+
+    @Override
+    public boolean matches(String text) {
+        debug("Matching text %s against pattern %s", text, pattern);
+        return new BacktrackRunner(text, false, false).matches();
+    }
+
+    @Override
+    public boolean find(String text) {
+        debug("Searching text %s for pattern %s", text, pattern);
+        return new BacktrackRunner(text, true, false).find();
+    }
+
+    @Override
+    public CaptureResult findResult(CharSequence text, int from) {
+        debug("Searching text %s for pattern %s from %s", text, pattern, from);
+        return new BacktrackRunner(text.toString(), true, true).findResult(from);
+    }
+
+    public static boolean matches(String pattern, String text) {
+        return new BacktrackMatcher(pattern).matches(text);
+    }
+
+    private static void debug(String fmt, Object... args) {
+        if (DEBUG_LEVEL >= 1) {
+            System.out.println("BTDEBUG: " + String.format(fmt, args));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package io.github.travisdowns.polyregex;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps each capture state to a representative capture state with the same content, for one input text.
+ * <p>
+ * A closed group (start and end both set) can only be used by matching a backref against the captured
+ * text, or be overwritten by starting the group again, so two closed groups are equivalent if they captured
+ * the same text, wherever it was. An open group (only the start set) will be closed at some later position,
+ * so its start position matters, as do groups in any other state. So two capture states whose groups are
+ * pairwise equivalent in this sense lead to exactly the same matches, and a matcher can use the first one seen
+ * (the representative) in place of all the others. The exception is a group whose span is part of the result of
+ * the match, which is always compared by position.
+ * <p>
+ * Capture states are identified by their id in a {@link CaptureStatePool}, and the representative of each id
+ * is cached, so it is only computed once per capture state. Equal substrings are found by comparing polynomial
+ * hashes, with collisions ruled out by comparing the actual text.
+ */
+final class CaptureInterner {
+
+    /** multiplier for the polynomial substring hashes, an arbitrary large odd number */
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final String text;
+    private final CaptureStatePool pool;
+    /** the groups which are compared by position even when closed, as a mask of {@link Program#groupBit(int)} */
+    private final int positionGroups;
+    /** polynomial hashes of each prefix of text, so the hash of any substring can be found in O(1) */
+    private final long[] prefixHashes;
+    /** HASH_MULTIPLIER^i for each i up to the length of the text */
+    private final long[] powers;
+    /** the representative for each content seen */
+    private final Map<ContentKey, Integer> representatives = new HashMap<>();
+    /** the representative of each capture state id + 1, or 0 if not computed yet */
+    private int[] cache = new int[16];
+
+    CaptureInterner(String text, CaptureStatePool pool) {
+        this(text, pool, 0);
+    }
+
+    CaptureInterner(String text, CaptureStatePool pool, int positionGroups) {
+        this.text = text;
+        this.pool = pool;
+        this.positionGroups = positionGroups;
+        this.prefixHashes = new long[text.length() + 1];
+        this.powers = new long[text.length() + 1];
+        powers[0] = 1;
+        for (int i = 0; i < text.length(); i++) {
+            prefixHashes[i + 1] = prefixHashes[i] * HASH_MULTIPLIER + text.charAt(i);
+            powers[i + 1] = powers[i] * HASH_MULTIPLIER;
+        }
+    }
+
+    /**
+     * @return the id of the representative of capture state id, which is id itself if no capture state with the
+     * same content has been seen yet
+     */
+    int intern(int id) {
+        if (id >= cache.length) {
+            cache = Arrays.copyOf(cache, Math.max(cache.length * 2, id + 1));
+        }
+        int ret = cache[id] - 1;
+        if (ret == -1) {
+            if (!hasClosedGroup(id)) {
+                // only equal capture states have the same content, so no need to look anything up
+                ret = id;
+            } else {
+                ret = representatives.computeIfAbsent(new ContentKey(id), k -> id);
+            }
+            cache[id] = ret + 1;
+        }
+        return ret;
+    }
+
+    /** the number of distinct contents seen, not counting capture states without any closed group */
+    int size() {
+        return representatives.size();
+    }
+
+    /** the hash of text[start, end) */
+    private long substringHash(int start, int end) {
+        return prefixHashes[end] - prefixHashes[start] * powers[end - start];
+    }
+
+    private boolean hasClosedGroup(int id) {
+        for (int g = 1; g <= pool.groups(); g++) {
+            if (isClosed(g, pool.start(id, g), pool.end(id, g))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** true if group g with the given span is closed, and so compared by content */
+    private boolean isClosed(int g, int start, int end) {
+        return start != -1 && end != -1 && start <= end && (positionGroups & Program.groupBit(g)) == 0;
+    }
+
+    /** wraps a capture state id to compare by content rather than by position */
+    private final class ContentKey {
+        final int id;
+        final int hash;
+
+        ContentKey(int id) {
+            this.id = id;
+            long h = 0;
+            for (int g = 1; g <= pool.groups(); g++) {
+                int start = pool.start(id, g), end = pool.end(id, g);
+                h = h * 31 + (isClosed(g, start, end) ? (end - start) * 37 + substringHash(start, end)
+                        : start * 37 + end);
+            }
+            this.hash = (int)(h ^ (h >>> 32));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            ContentKey rhs = (ContentKey)obj;
+            if (hash != rhs.hash) {
+                return false;
+            }
+            for (int g = 1; g <= pool.groups(); g++) {
+                int start = pool.start(id, g), end = pool.end(id, g);
+                int rstart = pool.start(rhs.id, g), rend = pool.end(rhs.id, g);
+                if (isClosed(g, start, end) && isClosed(g, rstart, rend)) {
+                    if (end - start != rend - rstart || !text.regionMatches(start, text, rstart, end - start)) {
+                        return false;
+                    }
+                } else if (start != rstart || end != rend) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
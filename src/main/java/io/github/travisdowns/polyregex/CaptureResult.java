@@ -0,0 +1,93 @@
+package io.github.travisdowns.polyregex;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.regex.MatchResult;
+
+/**
+ * The result of a successful match: the span of the whole match (group 0) and of each capture group, or -1 for
+ * a group which didn't take part in the match. Implements {@link MatchResult}, so it can be used like the result
+ * of a {@link java.util.regex.Matcher}.
+ * <p>
+ * Only the groups the matcher was asked to capture are reported, since tracking a group costs states while
+ * matching: asking for the span of any other group throws IllegalStateException.
+ */
+public final class CaptureResult implements MatchResult {
+
+    /** the start and end of a group which wasn't captured */
+    static final int NOT_CAPTURED = -2;
+
+    private final CharSequence text;
+    /** the start and end of each group, indexed by group number, so [0] is the whole match */
+    private final int[] starts, ends;
+
+    CaptureResult(CharSequence text, int[] starts, int[] ends) {
+        checkArgument(starts.length == ends.length && starts.length >= 1);
+        this.text = text;
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /** a result with just the span of the whole match */
+    CaptureResult(CharSequence text, int start, int end) {
+        this(text, new int[]{ start }, new int[]{ end });
+    }
+
+    @Override
+    public int start() {
+        return starts[0];
+    }
+
+    @Override
+    public int start(int group) {
+        checkGroup(group);
+        return starts[group];
+    }
+
+    @Override
+    public int end() {
+        return ends[0];
+    }
+
+    @Override
+    public int end(int group) {
+        checkGroup(group);
+        return ends[group];
+    }
+
+    @Override
+    public String group() {
+        return group(0);
+    }
+
+    @Override
+    public String group(int group) {
+        checkGroup(group);
+        return starts[group] == -1 || ends[group] == -1 ? null
+                : text.subSequence(starts[group], ends[group]).toString();
+    }
+
+    @Override
+    public int groupCount() {
+        return starts.length - 1;
+    }
+
+    private void checkGroup(int group) {
+        if (group < 0 || group >= starts.length) {
+            throw new IndexOutOfBoundsException("No group " + group);
+        }
+        if (starts[group] == NOT_CAPTURED) {
+            throw new IllegalStateException("Group " + group + " wasn't captured");
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CaptureResult[");
+        for (int g = 0; g < starts.length; g++) {
+            sb.append(g == 0 ? "" : ", ").append(starts[g] == NOT_CAPTURED ? "-"
+                    : String.format("(%d,%d)", starts[g], ends[g]));
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -4,87 +4,240 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 import java.util.Arrays;
-import java.util.Objects;
-
-import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
-import org.apache.commons.lang3.builder.ToStringStyle;
 
+/**
+ * The start and end positions of each referenced group, -1 for unset. Immutable.
+ * <p>
+ * When there are at most {@link #MAX_PACKED_GROUPS} groups and every position fits in 16 bits, which covers most
+ * patterns and lines, the positions are packed into two longs (16 bits per start in one, per end in the other,
+ * holding position + 1 so that unset is 0), rather than held in two arrays: the state is then a single small
+ * object, compared with two long comparisons and updated by replacing a bit-field. Otherwise the positions are
+ * held in arrays. Either way the hash is computed once, up front, and is the same for both representations.
+ */
 public final class CaptureState {
-    
+
+    /** the most groups which can be packed, 4 groups of 16 bits in each long */
+    static final int MAX_PACKED_GROUPS = 4;
+    /** positions (+ 1) must fit in 16 bits to be packed */
+    private static final int FIELD_BITS = 16;
+    private static final long FIELD_MASK = (1L << FIELD_BITS) - 1;
+
+    /** the starts and ends, or null if packed */
     private final int[] starts, ends;
+    /** if packed, position + 1 for the start and end of group g in bits 16(g-1) to 16g - 1, otherwise 0 */
+    private final long packedStarts, packedEnds;
+    /** the number of groups */
+    private final int size;
     private final int textlen;
-    
+    /** bit g-1 is set if group g has its start or end set, in the same format as {@link Program#live} */
+    private final int setMask;
+    private final int hash;
+
     public CaptureState(int[] starts, int[] ends, int textlen) {
         checkArgument(starts.length == ends.length);
-        this.starts = starts;
-        this.ends = ends;
+        this.size = starts.length;
+        this.textlen = textlen;
+        if (isPackable(size, textlen)) {
+            long ps = 0, pe = 0;
+            for (int i = 0; i < size; i++) {
+                ps = withField(ps, i, starts[i]);
+                pe = withField(pe, i, ends[i]);
+            }
+            this.starts = this.ends = null;
+            this.packedStarts = ps;
+            this.packedEnds = pe;
+        } else {
+            this.starts = starts;
+            this.ends = ends;
+            this.packedStarts = this.packedEnds = 0;
+        }
+        this.setMask = computeSetMask();
+        this.hash = computeHash();
+    }
+
+    /** a packed capture state */
+    private CaptureState(int size, long packedStarts, long packedEnds, int textlen) {
+        this.starts = this.ends = null;
+        this.size = size;
+        this.packedStarts = packedStarts;
+        this.packedEnds = packedEnds;
         this.textlen = textlen;
+        this.setMask = computeSetMask();
+        this.hash = computeHash();
+    }
+
+    /** true if a capture state with the given number of groups, for a text of the given length, is packed */
+    static boolean isPackable(int size, int textlen) {
+        return size <= MAX_PACKED_GROUPS && textlen + 1 <= FIELD_MASK;
+    }
+
+    private boolean isPacked() {
+        return starts == null;
+    }
+
+    /** the position in field i of packed */
+    private static int field(long packed, int i) {
+        return (int)((packed >>> (FIELD_BITS * i)) & FIELD_MASK) - 1;
+    }
+
+    /** packed with field i replaced by position */
+    private static long withField(long packed, int i, int position) {
+        int shift = FIELD_BITS * i;
+        return (packed & ~(FIELD_MASK << shift)) | ((position + 1L) << shift);
+    }
+
+    /*
+     * The start and end of slot i (group i + 1), for the internal loops over every slot: unlike the public
+     * accessors, these aren't limited to the groups \1 to \9 a backref can name, so a state can be built
+     * with any number of slots.
+     */
+    private int startAt(int i) {
+        return isPacked() ? field(packedStarts, i) : starts[i];
+    }
+
+    private int endAt(int i) {
+        return isPacked() ? field(packedEnds, i) : ends[i];
+    }
+
+    private int computeSetMask() {
+        int mask = 0;
+        for (int i = 0; i < size; i++) {
+            if (startAt(i) != -1 || endAt(i) != -1) {
+                mask |= Program.groupBit(i + 1);
+            }
+        }
+        return mask;
+    }
+
+    private int computeHash() {
+        int h = 1;
+        for (int i = 0; i < size; i++) {
+            h = (h * 31 + startAt(i)) * 31 + endAt(i);
+        }
+        return h;
     }
-    
+
     /** get the start value for the given backref (/1 to /9) */
     public int start(int backref) {
         checkArgument(backref >= 1 && backref <= 9);
-        return starts[backref - 1];
+        return startAt(backref - 1);
     }
-    
+
     /** get the end value for the given backref (/1 to /9) */
     public int end(int backref) {
         checkArgument(backref >= 1 && backref <= 9);
-        return ends[backref - 1];
+        return endAt(backref - 1);
     }
-    
+
     /**
      * @return a new {@link CaptureState} with the given capture updated to start at startIdx
      */
     public CaptureState withStart(int capture, int startIdx) {
         checkState(startIdx <= textlen);
+        if (isPacked()) {
+            // when we restart a capture we set the end to -1 ("unset")
+            return new CaptureState(size, withField(packedStarts, capture - 1, startIdx),
+                    withField(packedEnds, capture - 1, -1), textlen);
+        }
         int[] newstarts = this.starts.clone();
         int[] newends   = this.ends  .clone();
         newstarts[capture - 1] = startIdx;
         newends  [capture - 1] = -1; // when we restart a capture we set the end to -1 ("unset")
         return new CaptureState(newstarts, newends, textlen);
     }
-    
+
     /**
      * @return a new {@link CaptureState} with the given capture updated to end at endIdx
      */
     public CaptureState withEnd(int capture, int endIdx) {
         checkState(endIdx <= textlen);
-        checkState(starts[capture - 1] != -1, "end without start");
+        checkState(start(capture) != -1, "end without start");
+        if (isPacked()) {
+            return new CaptureState(size, packedStarts, withField(packedEnds, capture - 1, endIdx), textlen);
+        }
         int[] newends = this.ends.clone();
         newends[capture - 1] = endIdx;
         return new CaptureState(this.starts, newends, textlen);
     }
-    
+
+    /**
+     * @return a {@link CaptureState} with every group not in liveMask reset to unset, or this object if
+     * those groups are all unset already. Bit g-1 in liveMask is set for a live group g.
+     */
+    public CaptureState withLive(int liveMask) {
+        if ((setMask & ~liveMask) == 0) {
+            return this;
+        }
+        if (isPacked()) {
+            long keep = 0;
+            for (int i = 0; i < size; i++) {
+                if ((liveMask & Program.groupBit(i + 1)) != 0) {
+                    keep |= FIELD_MASK << (FIELD_BITS * i);
+                }
+            }
+            return new CaptureState(size, packedStarts & keep, packedEnds & keep, textlen);
+        }
+        int[] newstarts = this.starts.clone();
+        int[] newends   = this.ends  .clone();
+        for (int i = 0; i < size; i++) {
+            if ((liveMask & Program.groupBit(i + 1)) == 0) {
+                newstarts[i] = -1;
+                newends  [i] = -1;
+            }
+        }
+        return new CaptureState(newstarts, newends, textlen);
+    }
+
+    /** true if no group has its start or end set */
+    public boolean isUnset() {
+        return setMask == 0;
+    }
+
     /** the number of capture groups tracked in this state */
     public int size() {
-        return starts.length;
+        return size;
     }
 
     @Override
     public int hashCode() {
-        return Arrays.deepHashCode(new Object[]{ starts, ends });
+        return hash;
     }
-    
+
     @Override
     public boolean equals(Object rhs_) {
         CaptureState rhs = (CaptureState)rhs_;
-        return Objects.deepEquals(this.starts, rhs.starts) && Objects.deepEquals(this.ends, rhs.ends); 
+        if (hash != rhs.hash || size != rhs.size) {
+            return false;
+        }
+        if (isPacked() && rhs.isPacked()) {
+            return packedStarts == rhs.packedStarts && packedEnds == rhs.packedEnds;
+        }
+        for (int i = 0; i < size; i++) {
+            if (startAt(i) != rhs.startAt(i) || endAt(i) != rhs.endAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
-    
+
     @Override
     public String toString() {
-        return new ReflectionToStringBuilder(this, ToStringStyle.NO_CLASS_NAME_STYLE).toString();
+        int[] s = new int[size], e = new int[size];
+        for (int i = 0; i < size; i++) {
+            s[i] = startAt(i);
+            e[i] = endAt(i);
+        }
+        return "[starts=" + Arrays.toString(s) + ",ends=" + Arrays.toString(e) + ",textlen=" + textlen + "]";
     }
-    
+
     /**
      * @return terse representation than {@link #toString()}, with a (start, end) pair for each captured group, like (1,5)
      */
     public String str() {
         StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < starts.length; i++) {
-            sb.append(String.format("(%d,%d)%s", starts[i], ends[i], i == 0 ? "" : ", "));
+        for (int i = 0; i < size; i++) {
+            sb.append(String.format("(%d,%d)%s", startAt(i), endAt(i), i == 0 ? "" : ", "));
         }
         return sb.toString();
     }
-}
\ No newline at end of file
+}
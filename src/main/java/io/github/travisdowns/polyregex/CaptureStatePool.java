@@ -0,0 +1,244 @@
+package io.github.travisdowns.polyregex;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Arrays;
+
+/**
+ * Interns the capture states used while matching one text, giving each distinct capture state a dense int id,
+ * so matchers can pass capture states around as ints.
+ * <p>
+ * The spans of all the capture states are stored in one flat int[] (the starts then the ends of each capture
+ * state), found by open addressing over a table of ids, so there is no per-state allocation. The results of
+ * {@link #withStart(int, int, int)}, {@link #withEnd(int, int, int)} and {@link #withLive(int, int)} are cached
+ * by (id, group, position) or (id, live mask), so once a transition has been seen, taking it again is a single
+ * lookup in a {@link LongIntHashMap}, without allocating or hashing any spans.
+ * <p>
+ * Capture states are never removed, so a pool lives only as long as a single match.
+ */
+final class CaptureStatePool {
+
+    /* the kinds of transition, the low bits of the transition cache keys */
+    private static final int START = 0, END = 1, LIVE = 2;
+    private static final int KIND_BITS = 2;
+    /** groups are \1 to \9, so they fit in 4 bits */
+    private static final int GROUP_BITS = 4;
+    /** live masks have a bit for each of groups 1 to 9 */
+    private static final int LIVE_BITS = 9;
+
+    /** number of groups in each capture state */
+    private final int groups;
+    private final int textlen;
+    /** the starts of capture state id are at spans[id * 2 * groups], followed by the ends */
+    private int[] spans;
+    /** the set mask of each capture state, see {@link CaptureState} */
+    private int[] setMasks;
+    /** the capture state objects, created when first asked for */
+    private CaptureState[] objects;
+    private int size;
+
+    /** the hash table, holding id + 1 for each capture state, 0 for empty slots */
+    private int[] table;
+    private int tableMask;
+
+    /**
+     * cached transitions, see {@link #transitionKey(int, long, int)}, except that LIVE transitions have the live
+     * mask in its own bit field above the kind, since it doesn't fit in the arg field when the text is short
+     */
+    private final LongIntHashMap transitions = new LongIntHashMap();
+    /** scratch space for building new spans */
+    private final int[] scratch;
+
+    CaptureStatePool(int groups, int textlen) {
+        checkArgument(groups >= 0 && groups <= 9, "bad group count %s", groups);
+        this.groups = groups;
+        this.textlen = textlen;
+        this.spans = new int[16 * 2 * groups];
+        this.setMasks = new int[16];
+        this.objects = new CaptureState[16];
+        this.table = new int[32];
+        this.tableMask = table.length - 1;
+        this.scratch = new int[2 * groups];
+    }
+
+    /** the id of the capture state with every group unset */
+    int unset() {
+        Arrays.fill(scratch, -1);
+        return intern(scratch);
+    }
+
+    /** the id of the given capture state, which must have this pool's number of groups */
+    int intern(CaptureState capstate) {
+        checkArgument(capstate.size() == groups);
+        for (int g = 1; g <= groups; g++) {
+            scratch[g - 1] = capstate.start(g);
+            scratch[groups + g - 1] = capstate.end(g);
+        }
+        return intern(scratch);
+    }
+
+    /** the capture state with the given id */
+    CaptureState get(int id) {
+        CaptureState ret = objects[id];
+        if (ret == null) {
+            int base = id * 2 * groups;
+            ret = objects[id] = new CaptureState(Arrays.copyOfRange(spans, base, base + groups),
+                    Arrays.copyOfRange(spans, base + groups, base + 2 * groups), textlen);
+        }
+        return ret;
+    }
+
+    /** the start of group (1 to 9) in capture state id */
+    int start(int id, int group) {
+        return spans[id * 2 * groups + group - 1];
+    }
+
+    /** the end of group (1 to 9) in capture state id */
+    int end(int id, int group) {
+        return spans[id * 2 * groups + groups + group - 1];
+    }
+
+    /** the number of groups in each capture state */
+    int groups() {
+        return groups;
+    }
+
+    /** the number of distinct capture states */
+    int size() {
+        return size;
+    }
+
+    /** like {@link CaptureState#withStart(int, int)} */
+    int withStart(int id, int group, int startIdx) {
+        long key = transitionKey(id, (startIdx + 1L) << GROUP_BITS | group, START);
+        int ret = transitions.get(key, -1);
+        if (ret == -1) {
+            checkState(startIdx <= textlen);
+            load(id);
+            scratch[group - 1] = startIdx;
+            scratch[groups + group - 1] = -1; // when we restart a capture we set the end to -1 ("unset")
+            ret = intern(scratch);
+            transitions.put(key, ret);
+        }
+        return ret;
+    }
+
+    /** like {@link CaptureState#withEnd(int, int)} */
+    int withEnd(int id, int group, int endIdx) {
+        long key = transitionKey(id, (endIdx + 1L) << GROUP_BITS | group, END);
+        int ret = transitions.get(key, -1);
+        if (ret == -1) {
+            checkState(endIdx <= textlen);
+            checkState(start(id, group) != -1, "end without start");
+            load(id);
+            scratch[groups + group - 1] = endIdx;
+            ret = intern(scratch);
+            transitions.put(key, ret);
+        }
+        return ret;
+    }
+
+    /** like {@link CaptureState#withLive(int)} */
+    int withLive(int id, int liveMask) {
+        if ((setMasks[id] & ~liveMask) == 0) {
+            return id;
+        }
+        long key = ((long)id << LIVE_BITS | liveMask) << KIND_BITS | LIVE;
+        int ret = transitions.get(key, -1);
+        if (ret == -1) {
+            load(id);
+            for (int g = 1; g <= groups; g++) {
+                if ((liveMask & Program.groupBit(g)) == 0) {
+                    scratch[g - 1] = -1;
+                    scratch[groups + g - 1] = -1;
+                }
+            }
+            ret = intern(scratch);
+            transitions.put(key, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * The key for a START or END transition from id: the transition's arguments are packed into arg, which
+     * is at most (textlen + 2) << GROUP_BITS.
+     */
+    private long transitionKey(int id, long arg, int kind) {
+        return ((long)id * ((textlen + 2L) << GROUP_BITS) + arg) << KIND_BITS | kind;
+    }
+
+    /** copy the spans of id into scratch */
+    private void load(int id) {
+        System.arraycopy(spans, id * 2 * groups, scratch, 0, 2 * groups);
+    }
+
+    /** the id of the capture state with the given spans, added if not present */
+    private int intern(int[] newspans) {
+        int hash = hash(newspans, 0);
+        int i = hash & tableMask, cur;
+        while ((cur = table[i]) != 0) {
+            if (equalSpans(cur - 1, newspans)) {
+                return cur - 1;
+            }
+            i = (i + 1) & tableMask;
+        }
+        int id = add(newspans);
+        table[i] = id + 1;
+        if (size * 2 > table.length) {
+            growTable();
+        }
+        return id;
+    }
+
+    private int add(int[] newspans) {
+        int id = size++;
+        checkState((long)size * ((textlen + 2L) << GROUP_BITS) < 1L << (62 - KIND_BITS),
+                "too many capture states for the transition cache");
+        if (id == setMasks.length) {
+            spans = Arrays.copyOf(spans, spans.length * 2);
+            setMasks = Arrays.copyOf(setMasks, setMasks.length * 2);
+            objects = Arrays.copyOf(objects, objects.length * 2);
+        }
+        System.arraycopy(newspans, 0, spans, id * 2 * groups, 2 * groups);
+        int mask = 0;
+        for (int g = 1; g <= groups; g++) {
+            if (newspans[g - 1] != -1 || newspans[groups + g - 1] != -1) {
+                mask |= Program.groupBit(g);
+            }
+        }
+        setMasks[id] = mask;
+        return id;
+    }
+
+    private boolean equalSpans(int id, int[] other) {
+        int base = id * 2 * groups;
+        for (int i = 0; i < 2 * groups; i++) {
+            if (spans[base + i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hash(int[] a, int base) {
+        int h = 0;
+        for (int i = 0; i < 2 * groups; i++) {
+            h = h * 31 + a[base + i];
+        }
+        h *= 0x9E3779B9; // spread the bits, since the table index is just the low bits
+        return h ^ (h >>> 16);
+    }
+
+    private void growTable() {
+        table = new int[table.length * 2];
+        tableMask = table.length - 1;
+        for (int id = 0; id < size; id++) {
+            int i = hash(spans, id * 2 * groups) & tableMask;
+            while (table[i] != 0) {
+                i = (i + 1) & tableMask;
+            }
+            table[i] = id + 1;
+        }
+    }
+}
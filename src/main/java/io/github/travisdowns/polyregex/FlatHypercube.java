@@ -0,0 +1,94 @@
+package io.github.travisdowns.polyregex;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * A hypercube - i.e., a D-dimensional array with every dimension of size n - stored in a single flat array.
+ * <p>
+ * The element at (i_0, ..., i_D-1) is at index i_0 * n^(D-1) + ... + i_D-1 * n^0 of the array (mixed-radix
+ * indexing with every radix equal to n), so unlike {@link io.github.travisdowns.polyregex.obsolete.Hypercube},
+ * which is built of nested slices, a lookup is just arithmetic and the whole cube is one allocation.
+ * <p>
+ * A cube with 0 dimensions has exactly one element, at the empty list of indices.
+ */
+public final class FlatHypercube<T> {
+
+    private final int dimensions, n;
+    private final Object[] data;
+
+    /**
+     * Create a new {@link FlatHypercube} with the given dimension and size.
+     *
+     * @param dimensions the number of dimensions this cube should have, i.e., 1 for a normal array, 2 for
+     * a 2D array (matrix), etc.
+     * @param n the size of each dimension
+     * @throws IllegalArgumentException if the cube would have more than Integer.MAX_VALUE elements
+     */
+    public FlatHypercube(int dimensions, int n) {
+        checkArgument(dimensions >= 0, "dimension must be >= 0");
+        checkArgument(n >= 1, "size must be >= 1");
+        long size = 1;
+        for (int d = 0; d < dimensions; d++) {
+            size *= n;
+            checkArgument(size <= Integer.MAX_VALUE - 8, "hypercube with %s dimensions of size %s is too large",
+                    dimensions, n);
+        }
+        this.dimensions = dimensions;
+        this.n = n;
+        this.data = new Object[(int)size];
+    }
+
+    /** the total number of elements */
+    public int size() {
+        return data.length;
+    }
+
+    /** the index in the flat array of the element at the given location */
+    public int index(int... indices) {
+        checkArgument(indices.length == dimensions,
+                "number of indices (%s) must be equal to number of dimensions (%s)",
+                indices.length, dimensions);
+        int index = 0;
+        for (int i = 0; i < indices.length; i++) {
+            index = index * n + checkElementIndex(indices[i], n);
+        }
+        return index;
+    }
+
+    /** the inverse of {@link #index(int...)}: write the location of the element at index into indices */
+    public void indices(int index, int[] indices) {
+        checkElementIndex(index, data.length);
+        checkArgument(indices.length == dimensions);
+        for (int i = dimensions - 1; i >= 0; i--) {
+            indices[i] = index % n;
+            index /= n;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int... indices) {
+        return (T)data[index(indices)];
+    }
+
+    /**
+     * Set the given {@code value} at the location specified by indices.
+     *
+     * @param value the value to set
+     * @param indices the location to set it at
+     */
+    public void set(T value, int... indices) {
+        data[index(indices)] = value;
+    }
+
+    /** the element at the given index of the flat array, see {@link #index(int...)} */
+    @SuppressWarnings("unchecked")
+    public T getAt(int index) {
+        return (T)data[index];
+    }
+
+    /** set the element at the given index of the flat array, see {@link #index(int...)} */
+    public void setAt(int index, T value) {
+        data[index] = value;
+    }
+}
@@ -0,0 +1,46 @@
+package io.github.travisdowns.polyregex;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A growable stack of ints backed by a single int[], meant to be allocated once and reused, e.g.,
+ * as the explicit stack for an iterative graph traversal.
+ */
+public final class IntStack {
+
+    private int[] stack = new int[16];
+    private int size, maxSize;
+
+    public void push(int v) {
+        if (size == stack.length) {
+            stack = Arrays.copyOf(stack, size * 2);
+        }
+        stack[size++] = v;
+        maxSize = Math.max(maxSize, size);
+    }
+
+    public int pop() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return stack[--size];
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** the largest size this stack has ever reached */
+    public int maxSize() {
+        return maxSize;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,451 @@
+package io.github.travisdowns.polyregex;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * A DFA matcher for patterns without backrefs, where the DFA is built lazily from the base NFA while matching,
+ * like the DFA in RE2: each DFA state is a set of NFA states, and the transition out of a DFA state for a given
+ * character is only computed (by stepping the NFA states in the set) the first time that character is seen in
+ * that state. Once the states and transitions used by the input have been built, matching is just one array
+ * lookup per character.
+ * <p>
+ * Transitions are indexed by character class rather than by character: characters matched by exactly the same
+ * CHAR and RANGE states share a class, so every character which appears in a CHAR state gets its own class, and
+ * all the characters which only ANY can match share class 0.
+ * <p>
+ * {@link #find(String)} uses a separate set of DFA states, in which the start state's NFA states are added back
+ * after every step, so a new match can start at any position, and it returns as soon as it reaches a matching
+ * state.
+ * <p>
+ * {@link #findResult(CharSequence, int)} also needs the start of the match, which the DFA states don't track, so
+ * once the DFA has found that there is a match it's found by simulating the NFA, carrying the start of the match
+ * along with each NFA state.
+ * <p>
+ * The cache of DFA states is kept across calls to {@link #matches(String)}, and its estimated size in bytes is
+ * capped (-DLazyDFAMatcher.cacheBytes=N). When a new state doesn't fit, the whole cache is flushed and building
+ * restarts from the current state. If the cache is being flushed too often for it to pay off, the rest of
+ * the text is matched by simulating the NFA directly instead.
+ * <p>
+ * Not thread safe, since all matches share the cache.
+ */
+public class LazyDFAMatcher implements Matcher {
+
+    private static final int DEBUG_LEVEL = Integer.getInteger("LazyDFAMatcher.debug", 0);
+    /** the default cap on the estimated size of the DFA state cache, in bytes */
+    private static final long CACHE_BYTES = Long.getLong("LazyDFAMatcher.cacheBytes", 8 << 20);
+    /**
+     * When the cache fills up having processed fewer than this many characters per cached state since the
+     * last flush, the DFA is considered to be thrashing (the same heuristic as RE2 uses).
+     */
+    private static final int MIN_CHARS_PER_STATE = 10;
+    /** rough size in bytes of a DFA state and its cache entry, not counting the arrays */
+    private static final int STATE_OVERHEAD = 64;
+
+    /** pattern underlying this matcher, only used for display purposes */
+    private final String pattern;
+    /** the base NFA */
+    private final Program prog;
+    /** the cap on {@link #cacheBytes} */
+    private final long maxCacheBytes;
+
+    /**
+     * The characters split into intervals at each character where some CHAR or RANGE state starts or stops
+     * matching, so all the characters in an interval are in the same class: intervalStarts[i] is the first
+     * character of interval i, and intervalClasses[i] is its class.
+     */
+    private final char[] intervalStarts;
+    private final int[] intervalClasses;
+    /** the number of character classes */
+    private final int classCount;
+    /** the class of each character below 256, looked up directly rather than by binary search */
+    private final int[] lowClasses = new int[256];
+
+    /** the cached DFA states, each mapped to itself so they can be looked up by NFA state set */
+    private final Map<DState, DState> cache = new HashMap<>();
+    /** the estimated size of the cache */
+    private long cacheBytes;
+    /**
+     * The start states for matches and find, or null if not in the cache (because they haven't been built since the
+     * last flush).
+     */
+    private DState startState, findStartState;
+    /** characters processed since the cache was last flushed, used to detect thrashing */
+    private long charsSinceFlush;
+    /** the number of times the cache has been flushed */
+    private int flushes;
+
+    /* scratch space for computing NFA state sets */
+    private final SparseSet clist, nlist;
+    /** the start of the match of each NFA state in clist and nlist, for findResult */
+    private final int[] cstarts, nstarts;
+    private final IntStack stack = new IntStack();
+
+    /** a DFA state */
+    private static final class DState {
+        /** the ids of the NFA states which are stepped by a character (CHAR, ANY, RANGE and MATCH), sorted */
+        final int[] ids;
+        final boolean isMatch;
+        /** true for the states used by find, where the NFA start state is added at every position */
+        final boolean unanchored;
+        /** the next state for each character class, or null if not computed yet */
+        final DState[] next;
+
+        DState(int[] ids, boolean unanchored, int classCount) {
+            this.ids = ids;
+            this.unanchored = unanchored;
+            this.isMatch = ids.length > 0 && ids[0] == 0; // MATCH is always id 0
+            this.next = new DState[classCount];
+        }
+
+        long size() {
+            return STATE_OVERHEAD + 4L * ids.length + 8L * next.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(ids) + (unanchored ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            DState rhs = (DState)obj;
+            return unanchored == rhs.unanchored && Arrays.equals(ids, rhs.ids);
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(ids) + (isMatch ? " (match)" : "");
+        }
+    }
+
+    public LazyDFAMatcher(String pattern) {
+        this(pattern, CACHE_BYTES);
+    }
+
+    public LazyDFAMatcher(String pattern, long maxCacheBytes) {
+        this(pattern, ParserBase.doParse(pattern), maxCacheBytes);
+    }
+
+    LazyDFAMatcher(String pattern, State start) {
+        this(pattern, start, CACHE_BYTES);
+    }
+
+    LazyDFAMatcher(String pattern, State start, long maxCacheBytes) {
+        debug("Creating LazyDFAMatcher for pattern %s", pattern);
+        this.pattern = pattern;
+        this.maxCacheBytes = maxCacheBytes;
+        // no group is referenced, so this turns all the parens except group 0 into FORWARD states
+        start = State.removeUnreferencedGroups(start);
+        State.assignIds(start);
+        this.prog = Program.compile(start);
+        checkArgument(!prog.hasBackrefs(), "LazyDFAMatcher doesn't support backrefs: %s", pattern);
+        this.clist = new SparseSet(prog.size());
+        this.nlist = new SparseSet(prog.size());
+        this.cstarts = new int[prog.size()];
+        this.nstarts = new int[prog.size()];
+        this.intervalStarts = intervalStartsOf(prog);
+        this.intervalClasses = new int[intervalStarts.length];
+        int[] matchers = IntStream.range(0, prog.size())
+                .filter(s -> prog.op[s] == Program.CHAR || prog.op[s] == Program.RANGE).toArray();
+        // the classes are the distinct sets of CHAR and RANGE states matching an interval, the empty set first
+        Map<BitSet, Integer> classes = new HashMap<>();
+        classes.put(new BitSet(), 0);
+        for (int i = 0; i < intervalStarts.length; i++) {
+            BitSet matching = new BitSet();
+            for (int s : matchers) {
+                if (prog.matches(s, intervalStarts[i])) {
+                    matching.set(s);
+                }
+            }
+            intervalClasses[i] = classes.computeIfAbsent(matching, k -> classes.size());
+        }
+        this.classCount = classes.size();
+        for (char c = 0; c < lowClasses.length; c++) {
+            lowClasses[c] = intervalClass(c);
+        }
+        debug("Got %s states and %s character classes", prog.size(), classCount);
+    }
+
+    /** the first character of each interval, see {@link #intervalStarts}, sorted */
+    private static char[] intervalStartsOf(Program prog) {
+        int[] starts = IntStream.concat(IntStream.of(0), IntStream.range(0, prog.size()).flatMap(s -> {
+            switch (prog.op[s]) {
+            case Program.CHAR:
+                return IntStream.of(prog.data[s], prog.data[s] + 1);
+            case Program.RANGE:
+                return IntStream.of(prog.data[s] & 0xFFFF, (prog.data[s] >>> 16) + 1);
+            default:
+                return IntStream.empty();
+            }
+        })).filter(c -> c <= Character.MAX_VALUE).distinct().sorted().toArray();
+        char[] ret = new char[starts.length];
+        for (int i = 0; i < starts.length; i++) {
+            ret[i] = (char)starts[i];
+        }
+        return ret;
+    }
+
+    private int classOf(char c) {
+        return c < lowClasses.length ? lowClasses[c] : intervalClass(c);
+    }
+
+    /** the class of the interval containing c */
+    private int intervalClass(char c) {
+        int i = Arrays.binarySearch(intervalStarts, c);
+        return intervalClasses[i >= 0 ? i : -i - 2]; // otherwise c is in the interval before the insertion point
+    }
+
+    /* Add s to set, following unlabeled arrows. */
+    private void addstate(SparseSet set, int start) {
+        addstate(set, start, 0, null);
+    }
+
+    /* Add s to set, following unlabeled arrows, and record matchStart in starts for each state added. */
+    private void addstate(SparseSet set, int start, int matchStart, int[] starts) {
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            int s = stack.pop();
+            checkState(s != Program.NONE);
+            if (set.add(s)) {
+                if (starts != null) {
+                    starts[s] = matchStart;
+                }
+                switch (prog.op[s]) {
+                case Program.SPLIT:
+                    /* follow unlabeled arrows, pushed in reverse order so out is followed first */
+                    stack.push(prog.out1[s]);
+                    stack.push(prog.out [s]);
+                    break;
+                case Program.LPAREN:
+                case Program.RPAREN:
+                case Program.FORWARD:
+                    stack.push(prog.out[s]);
+                    break;
+                case Program.ANY:
+                case Program.CHAR:
+                case Program.RANGE:
+                case Program.MATCH:
+                case Program.MATCHNOTHING:
+                    break;
+                default:
+                    throw new RuntimeException("unhandled state type in addstate: " + prog.type(s));
+                }
+            }
+        }
+    }
+
+    /* Step the states in from past c, into to. If unanchored, also start a new match after c. */
+    private void step(SparseSet from, char c, SparseSet to, boolean unanchored) {
+        to.clear();
+        for (int i = 0; i < from.size(); i++) {
+            int s = from.get(i);
+            if ((prog.op[s] == Program.ANY || prog.op[s] == Program.CHAR || prog.op[s] == Program.RANGE)
+                    && prog.matches(s, c)) {
+                addstate(to, prog.out[s]);
+            }
+        }
+        if (unanchored) {
+            addstate(to, prog.start);
+        }
+    }
+
+    /**
+     * Look up the DFA state for the NFA states in set, adding it to the cache if necessary.
+     * @return the state, or null if the cache had to be flushed and is thrashing
+     */
+    private DState intern(SparseSet set, boolean unanchored) {
+        int[] ids = Arrays.stream(set.toArray()).filter(s -> prog.op[s] == Program.CHAR || prog.op[s] == Program.ANY
+                || prog.op[s] == Program.RANGE || prog.op[s] == Program.MATCH).sorted().toArray();
+        DState d = new DState(ids, unanchored, classCount);
+        DState cached = cache.get(d);
+        if (cached != null) {
+            return cached;
+        }
+        if (cacheBytes + d.size() > maxCacheBytes) {
+            boolean thrashing = charsSinceFlush < (long)MIN_CHARS_PER_STATE * cache.size()
+                    || d.size() > maxCacheBytes;
+            debug("Flushing %s states (%s bytes) after %s chars%s", cache.size(), cacheBytes, charsSinceFlush,
+                    thrashing ? ", thrashing" : "");
+            cache.clear();
+            cacheBytes = 0;
+            startState = findStartState = null;
+            charsSinceFlush = 0;
+            flushes++;
+            if (thrashing) {
+                return null;
+            }
+        }
+        cache.put(d, d);
+        cacheBytes += d.size();
+        debug2("Added state %s, cache now %s states (%s bytes)", d, cache.size(), cacheBytes);
+        return d;
+    }
+
+    /* Load the NFA states of d into set. */
+    private void load(DState d, SparseSet set) {
+        set.clear();
+        for (int s : d.ids) {
+            set.add(s);
+        }
+    }
+
+    @Override
+    public boolean matches(String text) {
+        debug("Matching text %s against pattern %s", text, pattern);
+        return run(text, 0, false);
+    }
+
+    @Override
+    public boolean find(String text) {
+        debug("Searching text %s for pattern %s", text, pattern);
+        return run(text, 0, true);
+    }
+
+    @Override
+    public boolean find(CharSequence text) {
+        return run(text, 0, true);
+    }
+
+    @Override
+    public CaptureResult findResult(CharSequence text, int from) {
+        debug("Searching text %s for pattern %s from %s", text, pattern, from);
+        return run(text, from, true) ? nfaFindResult(text, from) : null;
+    }
+
+    /* Run the DFA over text from position from, unanchored for find. */
+    private boolean run(CharSequence text, int from, boolean unanchored) {
+        DState d = unanchored ? findStartState : startState;
+        if (d == null) {
+            clist.clear();
+            addstate(clist, prog.start);
+            d = intern(clist, unanchored);
+            if (unanchored) {
+                findStartState = d;
+            } else {
+                startState = d;
+            }
+            if (d == null) {
+                return nfaMatches(clist, text, from, unanchored);
+            }
+        }
+        int counted = from; // the chars up to here have been added to charsSinceFlush
+        for (int i = from; i < text.length(); i++) {
+            if (unanchored && d.isMatch) {
+                charsSinceFlush += i - counted;
+                return true;
+            }
+            char c = text.charAt(i);
+            int cls = classOf(c);
+            DState next = d.next[cls];
+            if (next == null) {
+                charsSinceFlush += i - counted;
+                counted = i;
+                load(d, clist);
+                step(clist, c, nlist, unanchored);
+                int flushesBefore = flushes;
+                next = intern(nlist, unanchored);
+                if (next == null) {
+                    debug("Falling back to the NFA at position %s", i);
+                    return nfaMatches(nlist, text, i + 1, unanchored);
+                }
+                if (flushes == flushesBefore) {
+                    d.next[cls] = next; // otherwise d is no longer cached, so don't bother
+                }
+            }
+            d = next;
+        }
+        charsSinceFlush += text.length() - counted;
+        return d.isMatch;
+    }
+
+    /* Match the rest of text, starting at position i, by simulating the NFA from the states in set. */
+    private boolean nfaMatches(SparseSet set, CharSequence text, int i, boolean unanchored) {
+        SparseSet cur = set, nxt = set == clist ? nlist : clist;
+        for (; i < text.length(); i++) {
+            if (unanchored && cur.contains(0)) {
+                return true;
+            }
+            step(cur, text.charAt(i), nxt, unanchored);
+            SparseSet temp = cur;
+            cur = nxt;
+            nxt = temp;
+        }
+        return cur.contains(0);
+    }
+
+    /**
+     * The leftmost-longest match at or after from, found by simulating the NFA with the start of its match
+     * carried along with each state. The states in a set are in order of their starts, since the start state is
+     * added after all the others, so when two paths reach the same state the earlier start wins, which is right
+     * since they have the same future. Once there is a match, states which started after it are dropped, and the
+     * search stops when there are none left which started with it or before.
+     */
+    private CaptureResult nfaFindResult(CharSequence text, int from) {
+        SparseSet cur = clist, nxt = nlist;
+        int[] curStarts = cstarts, nxtStarts = nstarts;
+        cur.clear();
+        int bestStart = -1, bestEnd = -1;
+        for (int i = from;; i++) {
+            if (bestStart < 0) {
+                addstate(cur, prog.start, i, curStarts);
+            }
+            if (cur.contains(0) && (bestStart < 0 || curStarts[0] <= bestStart)) {
+                bestStart = curStarts[0];
+                bestEnd = i;
+            }
+            if (i == text.length()) {
+                break;
+            }
+            char c = text.charAt(i);
+            nxt.clear();
+            for (int j = 0; j < cur.size(); j++) {
+                int s = cur.get(j);
+                if ((bestStart < 0 || curStarts[s] <= bestStart) && (prog.op[s] == Program.ANY
+                        || prog.op[s] == Program.CHAR || prog.op[s] == Program.RANGE) && prog.matches(s, c)) {
+                    addstate(nxt, prog.out[s], curStarts[s], nxtStarts);
+                }
+            }
+            if (bestStart >= 0 && nxt.size() == 0) {
+                break;
+            }
+            SparseSet temp = cur;
+            cur = nxt;
+            nxt = temp;
+            int[] tempStarts = curStarts;
+            curStarts = nxtStarts;
+            nxtStarts = tempStarts;
+        }
+        checkState(bestStart >= 0, "the DFA found a match but the NFA didn't");
+        return new CaptureResult(text, bestStart, bestEnd);
+    }
+
+    /** the number of times the state cache has been flushed since this matcher was created */
+    public int flushCount() {
+        return flushes;
+    }
+
+    public static boolean matches(String pattern, String text) {
+        return new LazyDFAMatcher(pattern).matches(text);
+    }
+
+    private static void debug(String fmt, Object... args) {
+        debugN(1, fmt, args);
+    }
+
+    private static void debug2(String fmt, Object... args) {
+        debugN(2, fmt, args);
+    }
+
+    private static void debugN(int level, String fmt, Object... args) {
+        if (level <= DEBUG_LEVEL) {
+            System.out.println("DFADEBUG: " + String.format(fmt, args));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package io.github.travisdowns.polyregex;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A matcher for patterns which are just a literal string, optionally with a leading and/or trailing
+ * {@code .*}, so matching is just a string comparison or search. Created by the {@link Planner}, which
+ * recognizes such patterns.
+ */
+public class LiteralMatcher implements Matcher {
+
+    /** how the literal is matched, depending on which ends of the pattern have a {@code .*} */
+    public enum Kind {
+        /** abc */
+        EXACT,
+        /** abc.* */
+        PREFIX,
+        /** .*abc */
+        SUFFIX,
+        /** .*abc.* */
+        CONTAINS;
+
+        static Kind of(boolean leadingStar, boolean trailingStar) {
+            if (leadingStar) {
+                return trailingStar ? CONTAINS : SUFFIX;
+            } else {
+                return trailingStar ? PREFIX : EXACT;
+            }
+        }
+    }
+
+    private final String literal;
+    private final Kind kind;
+
+    public LiteralMatcher(String literal, Kind kind) {
+        this.literal = checkNotNull(literal);
+        this.kind = checkNotNull(kind);
+    }
+
+    @Override
+    public boolean matches(String text) {
+        switch (kind) {
+        case EXACT:
+            return text.equals(literal);
+        case PREFIX:
+            return text.startsWith(literal);
+        case SUFFIX:
+            return text.endsWith(literal);
+        case CONTAINS:
+            return text.contains(literal);
+        default:
+            throw new IllegalStateException("unhandled kind: " + kind);
+        }
+    }
+
+    @Override
+    public boolean find(String text) {
+        // every kind matches anywhere in the text, once a .* is added at each end
+        return text.contains(literal);
+    }
+
+    @Override
+    public boolean find(CharSequence text) {
+        return indexOf(text, 0) >= 0;
+    }
+
+    /**
+     * The leftmost-longest match is the first occurrence of the literal, extended by any {@code .*} over the
+     * rest of the text: to the end for a trailing one, and back to from for a leading one, which then ends after
+     * the last occurrence.
+     */
+    @Override
+    public CaptureResult findResult(CharSequence text, int from) {
+        int i = indexOf(text, from);
+        if (i < 0) {
+            return null;
+        }
+        switch (kind) {
+        case EXACT:
+            return new CaptureResult(text, i, i + literal.length());
+        case PREFIX:
+            return new CaptureResult(text, i, text.length());
+        case SUFFIX:
+            return new CaptureResult(text, from, lastIndexOf(text, i) + literal.length());
+        case CONTAINS:
+            return new CaptureResult(text, from, text.length());
+        default:
+            throw new IllegalStateException("unhandled kind: " + kind);
+        }
+    }
+
+    /** the index of the first occurrence of the literal in text at or after from, or -1 */
+    private int indexOf(CharSequence text, int from) {
+        if (literal.isEmpty()) {
+            return from <= text.length() ? from : -1;
+        }
+        char first = literal.charAt(0);
+        for (int i = from, last = text.length() - literal.length(); i <= last; i++) {
+            if (text.charAt(i) == first && regionMatches(text, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** the index of the last occurrence of the literal in text, given that there is one at or after from */
+    private int lastIndexOf(CharSequence text, int from) {
+        for (int i = text.length() - literal.length(); i > from; i--) {
+            if (text.charAt(i) == literal.charAt(0) && regionMatches(text, i)) {
+                return i;
+            }
+        }
+        return from;
+    }
+
+    /** true if the rest of the literal, after the first char, is at text[i + 1...] */
+    private boolean regionMatches(CharSequence text, int i) {
+        for (int j = 1; j < literal.length(); j++) {
+            if (text.charAt(i + j) != literal.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String literal() {
+        return literal;
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    @Override
+    public String toString() {
+        return "LiteralMatcher[" + kind + " \"" + literal + "\"]";
+    }
+}
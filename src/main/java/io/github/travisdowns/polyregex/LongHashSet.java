@@ -0,0 +1,99 @@
+package io.github.travisdowns.polyregex;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+/**
+ * A set of non-negative longs, implemented with open addressing (linear probing) over a single
+ * long[] array, so unlike a {@code HashSet<Long>} there is no boxing and no per-element allocation.
+ */
+public final class LongHashSet {
+
+    /** marks an empty slot, we store key + 1 so that 0 is never a valid stored value */
+    private static final long EMPTY = 0;
+
+    private long[] table;
+    private int size, mask;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    /**
+     * @param expected the number of elements expected, the set will not need to grow until
+     * it has at least this many elements
+     */
+    public LongHashSet(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(expected, 8) * 2 - 1) << 1;
+        this.table = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Add the given key.
+     * @param key the key to add, must be non-negative
+     * @return true if the key was added, false if it was already present
+     */
+    public boolean add(long key) {
+        checkArgument(key >= 0, "negative key %s", key);
+        long stored = key + 1;
+        int i = slot(stored);
+        long cur;
+        while ((cur = table[i]) != EMPTY) {
+            if (cur == stored) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = stored;
+        if (++size * 2 > table.length) {
+            grow();
+        }
+        return true;
+    }
+
+    /** @return true if the set contains key */
+    public boolean contains(long key) {
+        long stored = key + 1;
+        long cur;
+        for (int i = slot(stored); (cur = table[i]) != EMPTY; i = (i + 1) & mask) {
+            if (cur == stored) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return the number of keys in the set */
+    public int size() {
+        return size;
+    }
+
+    /** remove all keys, without shrinking the table */
+    public void clear() {
+        Arrays.fill(table, EMPTY);
+        size = 0;
+    }
+
+    private int slot(long stored) {
+        // fibonacci hashing, the high bits are the well mixed ones
+        long h = stored * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    private void grow() {
+        long[] old = table;
+        table = new long[old.length * 2];
+        mask = table.length - 1;
+        for (long stored : old) {
+            if (stored != EMPTY) {
+                int i = slot(stored);
+                while (table[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = stored;
+            }
+        }
+    }
+}
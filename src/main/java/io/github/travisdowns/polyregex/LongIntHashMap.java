@@ -0,0 +1,96 @@
+package io.github.travisdowns.polyregex;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A map from non-negative longs to ints, implemented with open addressing (linear probing) over parallel
+ * long[] and int[] arrays, like {@link LongHashSet}, so there is no boxing and no per-entry allocation.
+ */
+public final class LongIntHashMap {
+
+    /** marks an empty slot, we store key + 1 so that 0 is never a valid stored key */
+    private static final long EMPTY = 0;
+
+    private long[] keys;
+    private int[] values;
+    private int size, mask;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    /**
+     * @param expected the number of entries expected, the map will not need to grow until
+     * it has at least this many entries
+     */
+    public LongIntHashMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(expected, 8) * 2 - 1) << 1;
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /** @return the value for key, or missing if there is no entry for key */
+    public int get(long key, int missing) {
+        long stored = key + 1;
+        long cur;
+        for (int i = slot(stored); (cur = keys[i]) != EMPTY; i = (i + 1) & mask) {
+            if (cur == stored) {
+                return values[i];
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Set the value for key.
+     * @param key the key, must be non-negative
+     */
+    public void put(long key, int value) {
+        checkArgument(key >= 0, "negative key %s", key);
+        long stored = key + 1;
+        int i = slot(stored);
+        long cur;
+        while ((cur = keys[i]) != EMPTY) {
+            if (cur == stored) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = stored;
+        values[i] = value;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    /** @return the number of entries in the map */
+    public int size() {
+        return size;
+    }
+
+    private int slot(long stored) {
+        // fibonacci hashing, the high bits are the well mixed ones
+        long h = stored * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != EMPTY) {
+                int i = slot(oldKeys[j]);
+                while (keys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+}
@@ -1,32 +1,101 @@
 package io.github.travisdowns.polyregex;
 
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Supplier;
-import java.util.stream.Collectors;
 
-import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
-import com.google.common.io.CharStreams;
-import com.google.common.io.LineProcessor;
 
 import io.github.travisdowns.polyregex.obsolete.OriginalMatcher;
 
 public class Main {
 
+    /**
+     * The matcher used by grep, can be set on the command line with -DMain.matcher=NAME, see
+     * {@link #newMatcher(String)} for the names.
+     */
+    private static final String MATCHER = System.getProperty("Main.matcher", "auto");
+
+    /**
+     * If true, grep reads files by memory-mapping them, see {@link MappedLineScanner}, otherwise through a
+     * buffer, as it does for stdin. Either way it finds the same lines. Can be set on the command line with
+     * -DMain.mmap=false.
+     */
+    private static final boolean MMAP = Boolean.parseBoolean(System.getProperty("Main.mmap", "true"));
+
+    /**
+     * If true, grep input (files and stdin alike) is matched as UTF-8 bytes by a matcher for the lowered pattern,
+     * see {@link State#lowerToUtf8(State)}, so no line is ever decoded, and ill-formed UTF-8 is never matched by
+     * '.' or any other char. Otherwise non-ASCII lines are decoded as UTF-8 and matched as chars, so ill-formed
+     * bytes become U+FFFD, which '.' matches. Can be set on the command line with -DMain.utf8=false.
+     */
+    private static final boolean UTF8 = Boolean.parseBoolean(System.getProperty("Main.utf8", "true"));
+
+    /** create the matcher selected by {@link #MATCHER}, by default the one chosen by the {@link Planner} */
+    static Matcher newMatcher(String pattern) {
+        switch (MATCHER) {
+        case "auto":
+            Planner.Plan plan = Planner.plan(pattern);
+            Verbose.verbose("Planned %s", plan);
+            return plan.newMatcher();
+        case "original":
+            return new OriginalMatcher(pattern);
+        case "backref":
+            return new BackrefMatcher(pattern);
+        case "pike":
+            return new PikeMatcher(pattern);
+        case "backtrack":
+            return new BacktrackMatcher(pattern);
+        case "dfa":
+            return new LazyDFAMatcher(pattern);
+        default:
+            throw new IllegalArgumentException("unknown matcher: " + MATCHER
+                    + " (expected auto, original, backref, pike, backtrack or dfa)");
+        }
+    }
+
+    /**
+     * Create the matcher selected by {@link #MATCHER} for the pattern lowered to match UTF-8 bytes, see
+     * {@link State#lowerToUtf8(State)}, or return null if that matcher only works on chars.
+     */
+    static Matcher newUtf8Matcher(String pattern) {
+        switch (MATCHER) {
+        case "auto":
+            Planner.Plan plan = Planner.plan(pattern);
+            Verbose.verbose("Planned %s (over UTF-8)", plan);
+            return plan.newUtf8Matcher();
+        case "original":
+            return null;
+        case "backref":
+            return new BackrefMatcher(pattern, State.lowerToUtf8(ParserBase.doParse(pattern)));
+        case "pike":
+            return new PikeMatcher(pattern, State.lowerToUtf8(ParserBase.doParse(pattern)));
+        case "backtrack":
+            return new BacktrackMatcher(pattern, State.lowerToUtf8(ParserBase.doParse(pattern)));
+        case "dfa":
+            return new LazyDFAMatcher(pattern, State.lowerToUtf8(ParserBase.doParse(pattern)));
+        default:
+            throw new IllegalArgumentException("unknown matcher: " + MATCHER
+                    + " (expected auto, original, backref, pike, backtrack or dfa)");
+        }
+    }
+
     /**
      * Do the thing that xnfa-java script wants for use with Russ Cox's timing/xtime timing test.
      */
     private static void doXtime(List<String> args) {
         //      System.err.println("" + (args.length - 1) + " strings passed");
         String pattern = args.get(0);
-        OriginalMatcher matcher = new OriginalMatcher(pattern);
+        Matcher matcher = newMatcher(pattern);
         for (String text : args.subList(1, args.size())) {
             if (matcher.matches(text)) {
                 System.out.println(text);
@@ -41,51 +110,88 @@ public class Main {
      * Do a shallow imitation of grep.
      * <p>
      * We support only the
-     * <pre>grep [OPTIONS] PATTERN [FILE...]</pre>
+     * <pre>grep [-o] PATTERN [FILE...]</pre>
      * variant of grep, which takes a pattern and 0 or more files to grep. If zero files
-     * are provided, use stdin as the only file to grep.
+     * are provided, use stdin as the only file to grep. With -o, only the matched parts of each line
+     * are printed, each on its own line, as found by {@link Matcher#findResult(CharSequence, int)} of the same
+     * matcher which finds the lines.
+     * <p>
+     * Files are memory-mapped, and stdin is read through a buffer, and either way lines are searched in place as
+     * views of the bytes, so only the lines which are printed are ever copied, using a matcher for the pattern
+     * lowered to UTF-8 (or if that's disabled, only the ASCII lines are, and other lines are decoded as UTF-8
+     * first). Files and stdin are split into lines and matched the same way, so they give the same output.
      */
     private static void doGrep(List<String> args) throws IOException {
         try {
+            boolean onlyMatching = !args.isEmpty() && args.get(0).equals("-o");
+            if (onlyMatching) {
+                args = args.subList(1, args.size());
+            }
             if (args.isEmpty()) throw new UsageException();
             
-            // add the wildcards at each end to emulate grep's "anywhere in line" match behavior
-            String pattern = ".*" + args.get(0) + ".*";
+            // lines are matched with find, for grep's "anywhere in line" match behavior
+            String pattern = args.get(0);
             args = args.subList(1, args.size());
             
-            List<Supplier<? extends Readable>> inputs;
-            if (args.isEmpty()) {
-                inputs = Collections.singletonList(Suppliers.ofInstance(new InputStreamReader(System.in)));
-            } else {
-                inputs = new ArrayList<>();
-                for (String filename : args) {
-                    inputs.add(Suppliers.ofInstance(new FileReader(filename)));
+            // only build the char matcher if there's no UTF-8 one
+            Matcher utf8Matcher = UTF8 ? newUtf8Matcher(pattern) : null;
+            boolean utf8 = utf8Matcher != null;
+            Matcher matcher = utf8 ? utf8Matcher : newMatcher(pattern);
+            OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+            MappedLineScanner.LineConsumer grep = line -> grepLine(line, matcher, utf8, onlyMatching, out);
+            try {
+                if (args.isEmpty()) {
+                    MappedLineScanner.scan(System.in, grep);
                 }
-            }
-            
-            Matcher matcher = new BackrefMatcher(pattern);
-            
-            for (Supplier<? extends Readable> rsupplier : inputs) {
-                Readable r = rsupplier.get();
-                CharStreams.readLines(r, new LineProcessor<Object>() {
-                    @Override
-                    public boolean processLine(String line) throws IOException {
-                        if (matcher.matches(line)) {
-                            System.out.println(line);
+                for (String filename : args) {
+                    if (MMAP) {
+                        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+                            MappedLineScanner.scan(channel, grep);
+                        }
+                    } else {
+                        try (InputStream in = new FileInputStream(filename)) {
+                            MappedLineScanner.scan(in, grep);
                         }
-                        return true;
-                    };
-                    @Override
-                    public Object getResult() { return null; }
-                });
-                
-                if (r instanceof Closeable) {
-                    ((Closeable)r).close();
+                    }
                 }
+            } finally {
+                out.flush();
             }
-            
         } catch (UsageException e) {
-            System.err.println("Usage: grep PATTERN [FILE]...");
+            System.err.println("Usage: grep [-o] PATTERN [FILE]...");
+        }
+    }
+
+    /**
+     * grep one line, printing it to out, or each match if onlyMatching, as for -o: if utf8, matcher matches the UTF-8
+     * bytes of the line, otherwise its chars
+     */
+    private static void grepLine(MappedLineScanner.Line line, Matcher matcher, boolean utf8, boolean onlyMatching,
+            OutputStream out) throws IOException {
+        // the line as matched, and how to turn matched chars back into the bytes they are made of
+        CharSequence text = utf8 || line.isAscii() ? line : line.decode();
+        if (!matcher.find(text)) {
+            // nothing to print
+        } else if (onlyMatching) {
+            printMatches(matcher, text, out, text == line ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+        } else {
+            line.writeTo(out);
+            out.write('\n');
+        }
+    }
+
+    /** print each non-empty match in text to out, encoded with charset, from left to right, like grep -o */
+    private static void printMatches(Matcher matcher, CharSequence text, OutputStream out, Charset charset)
+            throws IOException {
+        CaptureResult r;
+        for (int from = 0; from <= text.length() && (r = matcher.findResult(text, from)) != null; ) {
+            if (r.end() > r.start()) {
+                out.write(r.group().getBytes(charset));
+                out.write('\n');
+                from = r.end();
+            } else {
+                from = r.end() + 1; // skip empty matches, like grep
+            }
         }
     }
 
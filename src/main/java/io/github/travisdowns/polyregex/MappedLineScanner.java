@@ -0,0 +1,228 @@
+package io.github.travisdowns.polyregex;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the lines of a file through memory-mapped windows of the file, finding the line ends in the mapped bytes
+ * and passing each line to a {@link LineConsumer} as a {@link Line}, a view of the bytes which is never copied
+ * unless it is printed or converted to a String.
+ * <p>
+ * A window can be at most 2GB, so larger files are mapped as a series of windows: each window starts at the
+ * first line which didn't fit in the one before, and a line which doesn't fit in a whole window is handled by
+ * mapping a bigger window, up to the 2GB limit on the length of a line.
+ * <p>
+ * Lines end at {@code \n}, {@code \r} or {@code \r\n}, the same rules as {@code CharStreams.readLines} uses for
+ * stdin, and a final line without a line end is passed as is.
+ * <p>
+ * Input which can't be mapped, like stdin, is read through a buffer instead, see
+ * {@link #scan(InputStream, LineConsumer)}, and gives exactly the same lines.
+ */
+final class MappedLineScanner {
+
+    /** the size of each mapped window, by default 1GB, can be set with -DMappedLineScanner.window=BYTES */
+    static final int WINDOW = Integer.getInteger("MappedLineScanner.window", 1 << 30);
+
+    /** the longest line which can be scanned */
+    private static final int MAX_LINE = Integer.MAX_VALUE;
+
+    /** the initial size of the buffer used to read a stream */
+    private static final int READ_CHUNK = 1 << 16;
+
+    interface LineConsumer {
+        /** called for each line, which is only valid until this returns */
+        void line(Line line) throws IOException;
+    }
+
+    private MappedLineScanner() {}
+
+    /** scan the lines of channel, from its start, using the default window size */
+    static void scan(FileChannel channel, LineConsumer consumer) throws IOException {
+        scan(channel, WINDOW, consumer);
+    }
+
+    /** scan the lines of channel, from its start, mapping window bytes at a time */
+    static void scan(FileChannel channel, int window, LineConsumer consumer) throws IOException {
+        checkArgument(window > 0, "bad window size %s", window);
+        long size = channel.size();
+        Line line = new Line();
+        int mapSize = window;
+        for (long pos = 0; pos < size;) {
+            int len = (int)Math.min(mapSize, size - pos);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+            boolean last = pos + len == size;
+            int start = lines(buf, 0, len, last, line, consumer);
+            if (last) {
+                break;
+            }
+            if (start == 0) {
+                // the line doesn't fit in the window, so try again with a bigger one
+                if (mapSize == MAX_LINE) {
+                    throw new IOException("line at byte " + pos + " is longer than " + MAX_LINE + " bytes");
+                }
+                mapSize = (int)Math.min(2L * mapSize, MAX_LINE);
+            } else {
+                // the next window starts at the line which didn't fit in this one
+                pos += start;
+                mapSize = window;
+            }
+        }
+    }
+
+    /** scan the lines of in, which isn't closed, reading it into a buffer READ_CHUNK bytes at a time */
+    static void scan(InputStream in, LineConsumer consumer) throws IOException {
+        scan(in, READ_CHUNK, consumer);
+    }
+
+    /**
+     * Scan the lines of in, which isn't closed, reading it into a buffer which starts at chunk bytes: the line which
+     * doesn't fit in the buffer is moved to its start for the next read, and the buffer grows if it doesn't fit at all.
+     */
+    static void scan(InputStream in, int chunk, LineConsumer consumer) throws IOException {
+        checkArgument(chunk > 0, "bad chunk size %s", chunk);
+        byte[] buf = new byte[chunk];
+        Line line = new Line();
+        for (int len = 0, from = 0;;) {
+            if (len == buf.length) {
+                if (len == MAX_LINE) {
+                    throw new IOException("line is longer than " + MAX_LINE + " bytes");
+                }
+                buf = Arrays.copyOf(buf, (int)Math.min(2L * len, MAX_LINE));
+            }
+            int n = in.read(buf, len, buf.length - len);
+            boolean last = n == -1;
+            if (!last) {
+                len += n;
+            }
+            int start = lines(ByteBuffer.wrap(buf), from, len, last, line, consumer);
+            if (last) {
+                break;
+            }
+            System.arraycopy(buf, start, buf, 0, len - start);
+            len -= start;
+            // the bytes kept have no line end, except a final \r which needs another look, so they aren't scanned again
+            from = len > 0 && buf[len - 1] == '\r' ? len - 1 : len;
+        }
+    }
+
+    /**
+     * Pass each line in buf[0, len) to consumer, looking for line ends from index from on (there are none before
+     * it), and if last, the line after the last line end too. Otherwise the bytes after the last line end start a
+     * line which continues past len, and so does a {@code \r} at len - 1, which may be followed by a {@code \n}.
+     * @return the index of the first byte not passed to consumer
+     */
+    private static int lines(ByteBuffer buf, int from, int len, boolean last, Line line, LineConsumer consumer)
+            throws IOException {
+        int start = 0;
+        for (int i = from; i < len; i++) {
+            byte b = buf.get(i);
+            if (b == '\n' || b == '\r') {
+                if (b == '\r' && i + 1 == len && !last) {
+                    break;
+                }
+                line.reset(buf, start, i);
+                consumer.line(line);
+                if (b == '\r' && i + 1 < len && buf.get(i + 1) == '\n') {
+                    i++;
+                }
+                start = i + 1;
+            }
+        }
+        if (last && start < len) {
+            line.reset(buf, start, len);
+            consumer.line(line);
+            start = len;
+        }
+        return start;
+    }
+
+    /**
+     * A line of a mapped file (or of a stream's buffer), as a CharSequence with one char per byte, so it's the line itself if the
+     * line is ASCII (see {@link #isAscii()}), and otherwise each byte of a UTF-8 sequence is a separate char
+     * in the Latin-1 range, as matched by a pattern lowered by {@link State#lowerToUtf8(State)}. {@link #decode()}
+     * gives the text of the line. One object is reused for every line.
+     */
+    static final class Line implements CharSequence {
+        private ByteBuffer buf;
+        private int start, end;
+        /** scratch space for {@link #writeTo(OutputStream)} */
+        private byte[] scratch = new byte[0];
+
+        private void reset(ByteBuffer buf, int start, int end) {
+            this.buf = buf;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= end - start) {
+                throw new IndexOutOfBoundsException("index " + index + " for length " + (end - start));
+            }
+            return (char)(buf.get(start + index) & 0xFF);
+        }
+
+        /** true if every byte of the line is ASCII, so it has the same chars as {@link #decode()} */
+        boolean isAscii() {
+            for (int i = start; i < end; i++) {
+                if (buf.get(i) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            checkPositionIndexes(from, to, length());
+            return new String(bytes(start + from, start + to), StandardCharsets.ISO_8859_1);
+        }
+
+        /** write the bytes of the line, without any line end, to out */
+        void writeTo(OutputStream out) throws IOException {
+            int len = length();
+            if (scratch.length < len) {
+                scratch = new byte[Math.max(len, 2 * scratch.length)];
+            }
+            ByteBuffer dup = buf.duplicate();
+            // cast to Buffer, which has the only position method in Java 8
+            ((Buffer)dup).position(start);
+            dup.get(scratch, 0, len);
+            out.write(scratch, 0, len);
+        }
+
+        private byte[] bytes(int from, int to) {
+            byte[] ret = new byte[to - from];
+            ByteBuffer dup = buf.duplicate();
+            ((Buffer)dup).position(from);
+            dup.get(ret);
+            return ret;
+        }
+
+        /** the line decoded as UTF-8 */
+        String decode() {
+            return new String(bytes(start, end), StandardCharsets.UTF_8);
+        }
+
+        /** the chars of the line, one per byte, like any CharSequence */
+        @Override
+        public String toString() {
+            return new String(bytes(start, end), StandardCharsets.ISO_8859_1);
+        }
+    }
+}
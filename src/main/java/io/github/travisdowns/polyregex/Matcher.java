@@ -3,4 +3,38 @@ package io.github.travisdowns.polyregex;
 public interface Matcher {
     /** true iff the given text matches the pattern represetned by this Matcher instance */  
     boolean matches(String text);
+
+    /**
+     * true iff some substring of the given text matches the pattern, like grep: the same as {@link #matches(String)}
+     * for the pattern with {@code .*} added at each end, but without the cost of those loops, and implementations
+     * return as soon as a match is certain rather than reading the rest of the text
+     */
+    boolean find(String text);
+
+    /**
+     * like {@link #find(String)} for any CharSequence, such as a view of a line in a memory-mapped file: by default
+     * the text is copied to a String, but implementations which only read the text a char at a time search it in
+     * place
+     */
+    default boolean find(CharSequence text) {
+        return find(text.toString());
+    }
+
+    /**
+     * The leftmost-longest match in text which starts at or after from, like grep -o, or null if there is none. Only
+     * the span of the whole match is reported, as group 0. Implementations find it in the same pass over the text as
+     * the match itself, by carrying the start of each match along with its threads, but by default it's found by
+     * trying {@link #matches(String)} on every substring, which is only fit for testing.
+     */
+    default CaptureResult findResult(CharSequence text, int from) {
+        String s = text.toString();
+        for (int start = from; start <= s.length(); start++) {
+            for (int end = s.length(); end >= start; end--) {
+                if (matches(s.substring(start, end))) {
+                    return new CaptureResult(text, start, end);
+                }
+            }
+        }
+        return null;
+    }
 }
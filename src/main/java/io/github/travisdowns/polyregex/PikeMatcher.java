@@ -0,0 +1,588 @@
+package io.github.travisdowns.polyregex;
+
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * A matcher which simulates the base NFA directly, without creating any per-capstate copies of the NFA
+ * like {@link BackrefMatcher} does. Instead, each thread in the simulation carries its own capture
+ * information along with the base NFA state it is in: this is the "NFA With Additional State" approach
+ * described in the README.
+ * <p>
+ * A backref is matched by a thread which sits on the BACKREF state and records how many characters
+ * of the captured text it has matched so far, rather than by expanding the backref into a chain of CHAR
+ * states. So a thread is a (base state, capture state, backref offset) triple, and two threads are the
+ * same thread if those three things are equal. That's exactly the information which identifies a state
+ * in the expanded SubNFA graphs of BackrefMatcher, so this matcher visits the same states and gives the
+ * same results, but only keeps track of the states which are actually reached.
+ * <p>
+ * {@link #find(String)} adds a new thread at the start state at each position, after the existing threads, and
+ * returns as soon as any thread reaches MATCH. Each thread also carries the position its match started at, which
+ * {@link #findResult(CharSequence, int)} uses to report the leftmost-longest match: threads are kept in order of
+ * their starts, so when two reach the same state, the earlier start wins.
+ * <p>
+ * Since the simulation only moves forwards through the text, it can also be fed the text incrementally, see
+ * {@link Session}.
+ */
+public class PikeMatcher implements Matcher {
+
+    private static final int DEBUG_LEVEL = Integer.getInteger("PikeMatcher.debug", 0);
+    /** merge threads whose captures have the same content by default, -DPikeMatcher.dedup=false to disable */
+    private static final boolean DEDUP = Boolean.parseBoolean(System.getProperty("PikeMatcher.dedup", "true"));
+
+    /** pattern underlying this matcher, only used for display purposes */
+    private final String pattern;
+    /** the base NFA, the only NFA used by this matcher */
+    private final Program prog;
+    /** number of captured groups referenced by a backref, the only groups tracked in the capture state */
+    private final int groupCount;
+    /**
+     * If true, threads at the same state whose capture states have the same content are merged, see
+     * {@link CaptureInterner}, so the number of threads is bounded by the number of distinct captured
+     * contents rather than the number of distinct capture positions.
+     */
+    private final boolean dedup;
+
+    /** the largest position in a session, so positions and position + 1 fit in an int */
+    private static final int STREAM_TEXTLEN = Integer.MAX_VALUE - 1;
+    /** the pool of a session isn't compacted until it has at least this many capture states */
+    private static final int POOL_COMPACT_MIN = 1 << 16;
+    /** the number of chars read at a time by {@link #matches(Reader)} */
+    private static final int READ_CHUNK = 8192;
+
+    /** instance of this class created for each match request */
+    private class PikeRunner {
+
+        /** the text being matched, or null in a {@link Session}, which keeps the text it needs in window */
+        final String text;
+        /** the double-buffered thread lists, swapped after each step */
+        private ThreadList clist = new ThreadList(), nlist = new ThreadList();
+        /**
+         * The explicit stack used by addstate to follow unlabeled arrows, reused for every call: each entry is
+         * a state id followed by a capture state id.
+         */
+        private final IntStack stack = new IntStack();
+        /**
+         * A dense id for every (state, capture state) pair visited so far, so the visited set of a thread list
+         * is a {@link SparseSet} of these ids. Ids are never reused, except that they are all dropped along with
+         * the capture state ids when a session compacts its pool.
+         */
+        private LongIntHashMap threadIds = new LongIntHashMap();
+
+        /** every capture state seen while matching this text */
+        private CaptureStatePool pool;
+        /** maps capture states to their representative, only used in dedup mode, and never in a session */
+        private final CaptureInterner interner;
+
+        /** in a session, window[0, windowLen) holds the text from position windowStart on */
+        private char[] window;
+        private int windowStart, windowLen;
+
+        PikeRunner(String text) {
+            this.text = text;
+            this.pool = new CaptureStatePool(groupCount, text == null ? STREAM_TEXTLEN : text.length());
+            this.interner = dedup && text != null ? new CaptureInterner(text, pool) : null;
+            this.window = text == null ? new char[16] : null;
+        }
+
+        /**
+         * A list of threads, each a (base state, capture state, backref offset) triple stored at the same index
+         * of the parallel states, caps and offsets arrays, which are reused for every step. The capture state is
+         * identified by its id in the pool, so comparing threads never has to look at the capture spans. The
+         * starts array holds the position where the match of each thread started.
+         */
+        private class ThreadList {
+            /** the threads which need to be processed in the next step, in the order they were added */
+            int[] states = new int[16], caps = new int[16], offsets = new int[16], starts = new int[16];
+            int size;
+            /**
+             * The ids (see {@link #threadIds}) of every thread added by addstate, including those like SPLIT
+             * which aren't retained in the list. The threads added by addstate all have offset 0, so the state and
+             * capture state identify them.
+             */
+            SparseSet visited = new SparseSet(16);
+            /** true if some thread is at MATCH */
+            boolean matched;
+            /** the match start of the first thread to reach MATCH, which is the earliest */
+            int matchStart;
+            /** the match start of the threads being added by addstate */
+            private int addStart;
+
+            void clear() {
+                size = 0;
+                visited.clear();
+                matched = false;
+            }
+
+            private void add(int s, int capstate, int offset, int matchStart) {
+                if (size == states.length) {
+                    states  = Arrays.copyOf(states,  size * 2);
+                    caps    = Arrays.copyOf(caps,    size * 2);
+                    offsets = Arrays.copyOf(offsets, size * 2);
+                    starts  = Arrays.copyOf(starts,  size * 2);
+                }
+                states [size] = s;
+                caps   [size] = capstate;
+                offsets[size] = offset;
+                starts [size] = matchStart;
+                size++;
+            }
+
+            /* Add the thread at state s to l, whose match started at matchStart, following unlabeled arrows. */
+            void addstate(int start, int startcap, int textIdx, int matchStart) {
+                addStart = matchStart;
+                push(start, startcap);
+                while (!stack.isEmpty()) {
+                    int capstate = stack.pop(), s = stack.pop();
+                    if (visit(s, capstate)) {
+                        follow(s, capstate, textIdx);
+                    }
+                }
+            }
+
+            /* Add the thread at s with capstate to the visited set, returning false if it was already there. */
+            private boolean visit(int s, int capstate) {
+                long key = (long)capstate << 32 | s;
+                int id = threadIds.get(key, -1);
+                if (id == -1) {
+                    id = threadIds.size();
+                    threadIds.put(key, id);
+                }
+                if (id >= visited.capacity()) {
+                    SparseSet bigger = new SparseSet(Math.max(visited.capacity() * 2, id + 1));
+                    for (int i = 0; i < visited.size(); i++) {
+                        bigger.add(visited.get(i));
+                    }
+                    visited = bigger;
+                }
+                return visited.add(id);
+            }
+
+            /* Process a newly visited thread, pushing any threads reached by unlabeled arrows. */
+            private void follow(int s, int capstate, int textIdx) {
+                int c = prog.data[s];
+                switch (prog.op[s]) {
+                case Program.SPLIT:
+                    /* follow unlabeled arrows, pushed in reverse order so out is followed first */
+                    push(prog.out1[s], capstate);
+                    push(prog.out [s], capstate);
+                    break;
+                case Program.FORWARD:
+                    push(prog.out[s], capstate);
+                    break;
+                case Program.LPAREN:
+                case Program.RPAREN:
+                    if (c == 0) { // parens 0 is special, it isn't captured
+                        push(prog.out[s], capstate);
+                    } else {
+                        int newcap = prog.op[s] == Program.LPAREN ?
+                                pool.withStart(capstate, c, textIdx + 1) : pool.withEnd(capstate, c, textIdx + 1);
+                        push(prog.out[s], newcap);
+                    }
+                    break;
+                case Program.BACKREF:
+                    int start = pool.start(capstate, c), end = pool.end(capstate, c);
+                    if ((start == -1 && end != -1) || (end != -1 && start > end)) {
+                        throw new IllegalStateException("invalid capture for " + str(s, capstate, 0));
+                    }
+                    if (end == -1) {
+                        // group hasn't been captured, or is still open as in (a\1), so the backref never
+                        // matches (see MATCHNOTHING in State), like in BacktrackMatcher
+                    } else if (start == end) {
+                        // empty capture, the backref matches without consuming anything
+                        push(prog.out[s], capstate);
+                    } else {
+                        add(s, capstate, 0, addStart);
+                    }
+                    break;
+                case Program.MATCH:
+                    if (!matched) {
+                        matched = true;
+                        matchStart = addStart;
+                    }
+                    add(s, capstate, 0, addStart);
+                    break;
+                case Program.ANY:
+                case Program.RANGE:
+                case Program.CHAR:
+                    add(s, capstate, 0, addStart);
+                    break;
+                default:
+                    throw new RuntimeException("unhandled state type in addstate: " + prog.type(s));
+                }
+            }
+
+            /*
+             * Push the thread at s, after resetting any groups which are dead at s (and in dedup mode, replacing
+             * the capture state by its representative) so equivalent threads merge.
+             */
+            private void push(int s, int capstate) {
+                checkState(s != Program.NONE);
+                capstate = pool.withLive(capstate, prog.live[s]);
+                if (interner != null) {
+                    capstate = interner.intern(capstate);
+                }
+                stack.push(s);
+                stack.push(capstate);
+            }
+
+            /*
+             * Add a thread which is partway through matching a backref. It came from a distinct thread with one
+             * less offset, so it can't already be in the list, and it isn't added to visited since it only
+             * matters for threads with offset 0.
+             */
+            void addBackref(int s, int capstate, int offset, int matchStart) {
+                add(s, capstate, offset, matchStart);
+            }
+
+            /* Check whether state list contains a match. */
+            boolean ismatch() {
+                return matched;
+            }
+
+            @Override
+            public String toString() {
+                StringBuilder sb = new StringBuilder("threads: ");
+                for (int i = 0; i < size; i++) {
+                    sb.append(i == 0 ? "" : ", ").append(str(states[i], caps[i], offsets[i]));
+                }
+                return sb.toString();
+            }
+        }
+
+        /* Compute initial thread list, into clist */
+        private void startlist() {
+            ThreadList l = clist;
+            l.clear();
+            l.addstate(prog.start, pool.unset(), -1, 0);
+            debug("Created starting thread list with %s threads (%s visited)", l.size, l.visited.size());
+            dumpThreads(l);
+        }
+
+        /*
+         * Step all the threads in clist past the character c into nlist, then swap the lists.
+         */
+        private void step(char c, int textIdx) {
+            step(c, textIdx, Integer.MAX_VALUE);
+        }
+
+        /*
+         * Step the threads in clist whose match started at or before maxStart past the character c into nlist,
+         * then swap the lists.
+         */
+        private void step(char c, int textIdx, int maxStart) {
+            nlist.clear();
+            for (int i = 0; i < clist.size; i++) {
+                int s = clist.states[i], cap = clist.caps[i], offset = clist.offsets[i], start = clist.starts[i];
+                if (start > maxStart) {
+                    continue;
+                }
+                if (prog.op[s] == Program.BACKREF) {
+                    int capstart = pool.start(cap, prog.data[s]), capend = pool.end(cap, prog.data[s]);
+                    if (charAt(capstart + offset) == c) {
+                        if (capstart + offset + 1 == capend) {
+                            // matched the whole captured text
+                            nlist.addstate(prog.out[s], cap, textIdx, start);
+                        } else {
+                            nlist.addBackref(s, cap, offset + 1, start);
+                        }
+                    }
+                } else if (prog.matches(s, c)) {
+                    nlist.addstate(prog.out[s], cap, textIdx, start);
+                }
+            }
+            debug("Processed character %c at position %d: %s current threads (%s visited)",
+                    c, textIdx, nlist.size, nlist.visited.size());
+            dumpThreads(nlist);
+            ThreadList temp = clist;
+            clist = nlist;
+            nlist = temp;
+        }
+
+        public boolean matches() {
+            startlist();
+            for (int i = 0; i < text.length(); i++) {
+                step(text.charAt(i), i);
+            }
+            debug("Created %d capture states", pool.size());
+            return clist.ismatch();
+        }
+
+        public boolean find() {
+            startlist();
+            for (int i = 0; i < text.length() && !clist.ismatch(); i++) {
+                step(text.charAt(i), i);
+                // a new match can start after every character
+                clist.addstate(prog.start, pool.unset(), i, i + 1);
+            }
+            debug("Created %d capture states", pool.size());
+            return clist.ismatch();
+        }
+
+        /**
+         * The leftmost-longest match at or after from: a new match is started at each position until some
+         * thread reaches MATCH, after which the threads which started later are dropped, and the search goes on
+         * until there are none left which might extend the match.
+         */
+        public CaptureResult findResult(int from) {
+            clist.clear();
+            int bestStart = -1, bestEnd = -1;
+            for (int i = from;; i++) {
+                if (bestStart < 0) {
+                    clist.addstate(prog.start, pool.unset(), i - 1, i);
+                }
+                if (clist.ismatch() && (bestStart < 0 || clist.matchStart <= bestStart)) {
+                    bestStart = clist.matchStart;
+                    bestEnd = i;
+                }
+                if (i == text.length() || (bestStart >= 0 && clist.size == 0)) {
+                    break;
+                }
+                step(text.charAt(i), i, bestStart < 0 ? Integer.MAX_VALUE : bestStart);
+            }
+            debug("Created %d capture states", pool.size());
+            return bestStart < 0 ? null : new CaptureResult(text, bestStart, bestEnd);
+        }
+
+        /** the character at pos, which in a session must be in the window */
+        private char charAt(int pos) {
+            return text != null ? text.charAt(pos) : window[pos - windowStart];
+        }
+
+        /** in a session, add c at position pos to the window and step past it */
+        private void consume(char c, int pos) {
+            if (groupCount > 0) { // otherwise there are no backrefs, so no text is ever needed again
+                if (windowLen == window.length) {
+                    window = Arrays.copyOf(window, window.length * 2);
+                }
+                window[windowLen++] = c;
+            }
+            step(c, pos);
+        }
+
+        /**
+         * In a session, drop the part of the window before the earliest captured text of any thread, which no
+         * backref can match any more, and compact the pool if most capture states are dead. Called after each
+         * chunk, with pos the position after the chunk.
+         */
+        private void endChunk(int pos) {
+            int keep = pos;
+            for (int i = 0; i < clist.size; i++) {
+                for (int g = 1; g <= groupCount; g++) {
+                    int start = pool.start(clist.caps[i], g);
+                    if (start != -1) {
+                        keep = Math.min(keep, start);
+                    }
+                }
+            }
+            int drop = keep - windowStart;
+            // only move the window when that at least halves it, so the copying is amortized O(1) per character
+            if (groupCount > 0 && drop > 0 && drop * 2 >= windowLen) {
+                System.arraycopy(window, drop, window, 0, windowLen - drop);
+                windowLen -= drop;
+                windowStart = keep;
+            }
+            if (pool.size() >= POOL_COMPACT_MIN && pool.size() > 4 * clist.size) {
+                compactPool();
+            }
+        }
+
+        /** replace the pool by a new one holding only the capture states of the threads in clist */
+        private void compactPool() {
+            CaptureStatePool newPool = new CaptureStatePool(groupCount, STREAM_TEXTLEN);
+            for (int i = 0; i < clist.size; i++) {
+                clist.caps[i] = newPool.intern(pool.get(clist.caps[i]));
+            }
+            // the thread ids and visited sets are only used while a list is built, but they hold ids from the old pool
+            threadIds = new LongIntHashMap();
+            clist.visited.clear();
+            nlist.visited.clear();
+            debug("Compacted capture state pool from %d to %d states", pool.size(), newPool.size());
+            pool = newPool;
+        }
+
+        private void dumpThreads(ThreadList l) {
+            if (DEBUG_LEVEL < 2) {
+                return;
+            }
+            for (int i = 0; i < l.size; i++) {
+                debug2("  %s", str(l.states[i], l.caps[i], l.offsets[i]));
+            }
+        }
+
+        private String str(int s, int capstate, int offset) {
+            return "id=" + s + " offset=" + offset + " (captures : " + pool.get(capstate).str() + ")";
+        }
+    }
+
+    /**
+     * An incremental match of one input against the whole pattern: the input is passed in chunks to
+     * {@link #feed(char[], int, int)} or {@link #feed(CharSequence)} (which also takes a
+     * {@link java.nio.CharBuffer}), then {@link #finish()} gives the result, so the input never has to be held
+     * in one piece.
+     * <p>
+     * Captures are positions in the input, so the session retains a window of the input starting at the earliest
+     * captured text of any live thread, and drops the input before it once no thread can match a backref against
+     * it. Patterns without backrefs retain nothing. The capture state pool is rebuilt from the live threads once
+     * most of its states are dead, so memory use depends on the threads alive, not the length of the input.
+     * Threads are never merged by captured content as in dedup mode, since {@link CaptureInterner} needs the
+     * whole text.
+     */
+    public final class Session {
+        private final PikeRunner runner = new PikeRunner(null);
+        /** the number of chars fed so far */
+        private int pos;
+        private boolean finished;
+
+        private Session() {
+            runner.startlist();
+        }
+
+        /** feed buf[off, off + len) */
+        public void feed(char[] buf, int off, int len) {
+            checkPositionIndexes(off, off + len, buf.length);
+            checkFeed(len);
+            if (isDead()) {
+                pos += len;
+                return;
+            }
+            for (int i = off; i < off + len; i++) {
+                runner.consume(buf[i], pos++);
+            }
+            runner.endChunk(pos);
+        }
+
+        /** feed all the chars in chars, which isn't referenced after this returns */
+        public void feed(CharSequence chars) {
+            int len = chars.length();
+            checkFeed(len);
+            if (isDead()) {
+                pos += len;
+                return;
+            }
+            for (int i = 0; i < len; i++) {
+                runner.consume(chars.charAt(i), pos++);
+            }
+            runner.endChunk(pos);
+        }
+
+        private void checkFeed(int len) {
+            checkState(!finished, "session already finished");
+            checkState(len <= STREAM_TEXTLEN - pos, "input too long");
+        }
+
+        /** true if there are no threads left, so the input can't match whatever else is fed */
+        public boolean isDead() {
+            return runner.clist.size == 0;
+        }
+
+        /** end the input, after which nothing more can be fed */
+        public boolean finish() {
+            checkState(!finished, "session already finished");
+            finished = true;
+            debug("Finished session after %d chars, with %d chars retained and %d capture states", pos,
+                    runner.windowLen, runner.pool.size());
+            return runner.clist.ismatch();
+        }
+
+        /** the number of chars fed so far */
+        public int position() {
+            return pos;
+        }
+
+        /** the number of input chars currently retained */
+        int windowSize() {
+            return runner.windowLen;
+        }
+
+        /** the number of capture states in the current pool */
+        int poolSize() {
+            return runner.pool.size();
+        }
+    }
+
+    public PikeMatcher(String pattern) {
+        // use the default DEDUP mode, which can be set on the command line
+        this(pattern, DEDUP);
+    }
+
+    public PikeMatcher(String pattern, boolean dedup) {
+        this(pattern, ParserBase.doParse(pattern), dedup);
+    }
+
+    PikeMatcher(String pattern, State start) {
+        this(pattern, start, DEDUP);
+    }
+
+    PikeMatcher(String pattern, State start, boolean dedup) {
+        debug("Creating PikeMatcher for pattern %s%s", pattern, dedup ? " (dedup)" : "");
+        this.pattern = pattern;
+        this.dedup = dedup;
+        debug("Got %s captured groups", State.groupCount(start));
+        // only the referenced groups get a slot in the capture state
+        start = State.removeUnreferencedGroups(start);
+        this.groupCount = State.referencedGroups(start).length;
+        debug("Got %s unique referenced groups", groupCount);
+        State.assignIds(start);
+        this.prog = Program.compile(start);
+        if (DEBUG_LEVEL >= 2) { // printing the program is expensive, only do it when needed
+            debug2("Base NFA program:\n-------------------------\n" + prog + "-------------------------\n");
+        }
+    }
+
+    @Override
+    public boolean matches(String text) {
+        debug("Matching text %s against pattern %s", text, pattern);
+        return new PikeRunner(text).matches();
+    }
+
+    @Override
+    public boolean find(String text) {
+        debug("Searching text %s for pattern %s", text, pattern);
+        return new PikeRunner(text).find();
+    }
+
+    @Override
+    public CaptureResult findResult(CharSequence text, int from) {
+        debug("Searching text %s for pattern %s from %s", text, pattern, from);
+        return new PikeRunner(text.toString()).findResult(from);
+    }
+
+    /** start a new incremental match, see {@link Session} */
+    public Session newSession() {
+        debug("Starting session against pattern %s", pattern);
+        return new Session();
+    }
+
+    /** match the whole of the text read from reader, which is read in chunks and isn't closed */
+    public boolean matches(Reader reader) throws IOException {
+        Session session = newSession();
+        char[] buf = new char[READ_CHUNK];
+        for (int n; !session.isDead() && (n = reader.read(buf)) != -1;) {
+            session.feed(buf, 0, n);
+        }
+        return session.finish();
+    }
+
+    public static boolean matches(String pattern, String text) {
+        return new PikeMatcher(pattern).matches(text);
+    }
+
+    private static void debug(String fmt, Object... args) {
+        debugN(1, fmt, args);
+    }
+
+    private static void debug2(String fmt, Object... args) {
+        debugN(2, fmt, args);
+    }
+
+    private static void debugN(int level, String fmt, Object... args) {
+        if (level <= DEBUG_LEVEL) {
+            System.out.println("PIKEDEBUG: " + String.format(fmt, args));
+        }
+    }
+}
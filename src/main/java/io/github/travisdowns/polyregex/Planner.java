@@ -0,0 +1,255 @@
+package io.github.travisdowns.polyregex;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import io.github.travisdowns.polyregex.LiteralMatcher.Kind;
+
+/**
+ * Picks the cheapest engine which can handle a pattern, by looking at the structure of its base NFA:
+ * <ul>
+ * <li>a literal string, optionally with a leading and/or trailing {@code .*}: {@link LiteralMatcher}, which
+ * is just a string comparison or search</li>
+ * <li>any other pattern without backrefs: {@link LazyDFAMatcher}</li>
+ * <li>backrefs which only refer to groups of bounded length: {@link BacktrackMatcher}, since each such group
+ * can only capture O(n) distinct spans rather than O(n^2), so the memo stays small, and the depth-first
+ * search stops as soon as it finds a match</li>
+ * <li>any other pattern: {@link PikeMatcher}, which only ever creates the capture states it reaches</li>
+ * </ul>
+ * The decision and the facts it was based on are recorded in the returned {@link Plan}.
+ */
+public final class Planner {
+
+    /** the engines the planner can pick */
+    public enum Engine {
+        LITERAL, DFA, BACKTRACK, PIKE
+    }
+
+    /** the result of planning a pattern */
+    public static final class Plan {
+        public final String pattern;
+        public final Engine engine;
+        /** why the engine was picked, for display */
+        public final String reason;
+        /** the max length of the text captured by each referenced group, or -1 if unbounded, indexed by slot */
+        public final int[] maxGroupLengths;
+        /** for the LITERAL engine, the literal and how it's matched, otherwise null */
+        public final String literal;
+        public final Kind literalKind;
+
+        private Plan(String pattern, Engine engine, String reason, int[] maxGroupLengths, String literal,
+                Kind literalKind) {
+            this.pattern = pattern;
+            this.engine = engine;
+            this.reason = reason;
+            this.maxGroupLengths = maxGroupLengths;
+            this.literal = literal;
+            this.literalKind = literalKind;
+        }
+
+        /** the number of groups referenced by a backref */
+        public int referencedGroups() {
+            return maxGroupLengths.length;
+        }
+
+        /** create a new matcher for the pattern, using the planned engine */
+        public Matcher newMatcher() {
+            switch (engine) {
+            case LITERAL:
+                return new LiteralMatcher(literal, literalKind);
+            case DFA:
+                return new LazyDFAMatcher(pattern);
+            case BACKTRACK:
+                return new BacktrackMatcher(pattern);
+            case PIKE:
+                return new PikeMatcher(pattern);
+            default:
+                throw new IllegalStateException("unhandled engine: " + engine);
+            }
+        }
+
+        /**
+         * Create a new matcher for the pattern using the planned engine, which matches the UTF-8 encoding of the
+         * text given with one char per byte, see {@link State#lowerToUtf8(State)}. Lowering doesn't change which
+         * groups are bounded, so the same engine is the right one, except that a literal with a {@code .*} at
+         * either end is matched by the DFA, since the {@code .*} mustn't span ill-formed bytes in a
+         * {@link Matcher#findResult(CharSequence, int) match span}.
+         */
+        public Matcher newUtf8Matcher() {
+            if (engine == Engine.LITERAL && literalKind == Kind.EXACT) {
+                return new LiteralMatcher(new String(literal.getBytes(StandardCharsets.UTF_8),
+                        StandardCharsets.ISO_8859_1), literalKind);
+            }
+            State start = State.lowerToUtf8(ParserBase.doParse(pattern));
+            switch (engine) {
+            case LITERAL:
+            case DFA:
+                return new LazyDFAMatcher(pattern, start);
+            case BACKTRACK:
+                return new BacktrackMatcher(pattern, start);
+            case PIKE:
+                return new PikeMatcher(pattern, start);
+            default:
+                throw new IllegalStateException("unhandled engine: " + engine);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s for pattern %s: %s (max referenced group lengths: %s)", engine, pattern,
+                    reason, Arrays.toString(maxGroupLengths));
+        }
+    }
+
+    private Planner() {}
+
+    public static Plan plan(String pattern) {
+        State start = State.removeUnreferencedGroups(ParserBase.doParse(pattern));
+        State.assignIds(start);
+        Program prog = Program.compile(start);
+
+        int[] lengths = new int[State.referencedGroups(start).length];
+        Arrays.fill(lengths, -1); // stays unbounded for a backref to a group that doesn't exist
+        for (int s = 0; s < prog.size(); s++) {
+            if (prog.op[s] == Program.LPAREN && prog.data[s] != 0) {
+                lengths[prog.data[s] - 1] = maxGroupLength(prog, s);
+            }
+        }
+
+        if (!prog.hasBackrefs()) {
+            Plan literal = literalPlan(pattern, prog);
+            if (literal != null) {
+                return literal;
+            }
+            return new Plan(pattern, Engine.DFA, "no backrefs", lengths, null, null);
+        }
+        if (Arrays.stream(lengths).allMatch(l -> l >= 0)) {
+            return new Plan(pattern, Engine.BACKTRACK, "all referenced groups have bounded length", lengths,
+                    null, null);
+        }
+        return new Plan(pattern, Engine.PIKE, "some referenced group has unbounded length", lengths, null, null);
+    }
+
+    /** plan pattern and create a matcher with the planned engine */
+    public static Matcher newMatcher(String pattern) {
+        return plan(pattern).newMatcher();
+    }
+
+    /** follow FORWARD states and group 0 parens, which just lead to the next state */
+    private static int skipEpsilons(Program prog, int s) {
+        while (prog.op[s] == Program.FORWARD || ((prog.op[s] == Program.LPAREN || prog.op[s] == Program.RPAREN)
+                && prog.data[s] == 0)) {
+            s = prog.out[s];
+        }
+        return s;
+    }
+
+    /** if s is the SPLIT of a .* loop, return the state after the loop, otherwise NONE */
+    private static int afterDotStar(Program prog, int s) {
+        if (prog.op[s] == Program.SPLIT) {
+            int body = prog.out[s];
+            if (prog.op[body] == Program.ANY && prog.out[body] == s) {
+                return prog.out1[s];
+            }
+        }
+        return Program.NONE;
+    }
+
+    /** a LITERAL plan if prog is a literal with an optional .* at either end, otherwise null */
+    private static Plan literalPlan(String pattern, Program prog) {
+        int s = skipEpsilons(prog, prog.start);
+        int next = afterDotStar(prog, s);
+        boolean leadingStar = next != Program.NONE;
+        if (leadingStar) {
+            s = skipEpsilons(prog, next);
+        }
+        StringBuilder literal = new StringBuilder();
+        while (prog.op[s] == Program.CHAR) {
+            literal.append((char)prog.data[s]);
+            s = skipEpsilons(prog, prog.out[s]);
+        }
+        next = afterDotStar(prog, s);
+        boolean trailingStar = next != Program.NONE;
+        if (trailingStar) {
+            s = skipEpsilons(prog, next);
+        }
+        if (prog.op[s] != Program.MATCH) {
+            return null;
+        }
+        Kind kind = Kind.of(leadingStar, trailingStar);
+        return new Plan(pattern, Engine.LITERAL, kind + " literal \"" + literal + "\"", new int[0],
+                literal.toString(), kind);
+    }
+
+    /**
+     * The longest text the group starting at the given LPAREN can capture, found as the longest path through
+     * the states between the LPAREN and its RPAREN, or -1 if there is no bound, i.e., if those states contain
+     * a loop (or a backref).
+     */
+    static int maxGroupLength(Program prog, int lparen) {
+        int group = prog.data[lparen];
+        // find the body of the group: everything reachable from the LPAREN without passing its RPAREN
+        SparseSet body = new SparseSet(prog.size());
+        IntStack stack = new IntStack();
+        stack.push(prog.out[lparen]);
+        while (!stack.isEmpty()) {
+            int s = stack.pop();
+            if (!(prog.op[s] == Program.RPAREN && prog.data[s] == group) && body.add(s)) {
+                pushSuccessors(prog, s, stack);
+            }
+        }
+
+        if (body.size() == 0) {
+            return 0; // ()
+        }
+
+        // longest path by visiting the body in topological order (Kahn's algorithm), which only reaches
+        // every state if there are no cycles
+        int[] indegree = new int[prog.size()];
+        for (int i = 0; i < body.size(); i++) {
+            for (int succ : new int[]{ prog.out[body.get(i)], prog.out1[body.get(i)] }) {
+                if (succ != Program.NONE && body.contains(succ)) {
+                    indegree[succ]++;
+                }
+            }
+        }
+        if (indegree[prog.out[lparen]] != 0) {
+            return -1; // the loop goes back to the start of the group
+        }
+        int[] dist = new int[prog.size()]; // longest text consumed before each state
+        int max = 0, visited = 0;
+        stack.push(prog.out[lparen]);
+        while (!stack.isEmpty()) {
+            int s = stack.pop();
+            visited++;
+            if (prog.op[s] == Program.BACKREF) {
+                return -1;
+            }
+            int after = dist[s] + (prog.op[s] == Program.CHAR || prog.op[s] == Program.ANY
+                    || prog.op[s] == Program.RANGE ? 1 : 0);
+            for (int succ : new int[]{ prog.out[s], prog.out1[s] }) {
+                if (succ == Program.NONE) {
+                    continue;
+                }
+                if (body.contains(succ)) {
+                    dist[succ] = Math.max(dist[succ], after);
+                    if (--indegree[succ] == 0) {
+                        stack.push(succ);
+                    }
+                } else {
+                    max = Math.max(max, after); // the RPAREN
+                }
+            }
+        }
+        return visited == body.size() ? max : -1;
+    }
+
+    private static void pushSuccessors(Program prog, int s, IntStack stack) {
+        if (prog.out[s] != Program.NONE) {
+            stack.push(prog.out[s]);
+        }
+        if (prog.out1[s] != Program.NONE) {
+            stack.push(prog.out1[s]);
+        }
+    }
+}
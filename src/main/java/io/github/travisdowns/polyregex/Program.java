@@ -0,0 +1,208 @@
+package io.github.travisdowns.polyregex;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Arrays;
+import java.util.List;
+
+import io.github.travisdowns.polyregex.State.Type;
+
+/**
+ * A frozen, flat representation of an NFA graph: one entry per state, stored in parallel primitive
+ * arrays indexed by the state id, rather than as State objects linked by StateRef objects.
+ * <p>
+ * A program is compiled from a graph after {@link State#assignIds(State)} has been called on it,
+ * so the MATCH state is always id 0 and the other states are numbered densely from 1. Arrows which
+ * don't exist are represented by {@link #NONE}.
+ */
+public final class Program {
+
+    /*
+     * The opcodes, one for each State.Type, with the same values as the ordinals of the corresponding
+     * Type, so they can be used as case labels.
+     */
+    public static final int CHAR         = 0;
+    public static final int ANY          = 1;
+    public static final int SPLIT        = 2;
+    public static final int MATCH        = 3;
+    public static final int LPAREN       = 4;
+    public static final int RPAREN       = 5;
+    public static final int BACKREF      = 6;
+    public static final int FORWARD      = 7;
+    public static final int INVALID      = 8;
+    public static final int MATCHNOTHING = 9;
+    public static final int RANGE        = 10;
+
+    private static final Type[] TYPES = Type.values();
+
+    /** value of {@link #out} and {@link #out1} when there is no such arrow */
+    public static final int NONE = -1;
+
+    static {
+        int[] opcodes = { CHAR, ANY, SPLIT, MATCH, LPAREN, RPAREN, BACKREF, FORWARD, INVALID, MATCHNOTHING, RANGE };
+        checkState(opcodes.length == TYPES.length, "missing opcodes");
+        for (Type t : TYPES) {
+            checkState(opcodes[t.ordinal()] == t.ordinal(), "opcode mismatch for %s", t);
+        }
+    }
+
+    /** the opcode of each state */
+    public final int[] op;
+    /** the data for each state: the character for CHAR, the range for RANGE, the group for parens and backrefs */
+    public final int[] data;
+    /** the id of the state pointed to by the out arrow, or {@link #NONE} */
+    public final int[] out;
+    /** the id of the state pointed to by the out1 arrow, or {@link #NONE} */
+    public final int[] out1;
+    /**
+     * The live groups for each state: bit g-1 of live[s] is set if the span captured for group g can
+     * still be used on some path starting at state s, i.e., if a BACKREF or RPAREN for g is reachable
+     * from s without passing through an LPAREN for g (which overwrites the span). A dead group can be
+     * reset to unset without changing the outcome of the match, see {@link CaptureState#withLive(int)}.
+     */
+    public final int[] live;
+    /** the id of the start state */
+    public final int start;
+
+    private Program(int size, int start) {
+        this.op   = new int[size];
+        this.data = new int[size];
+        this.out  = new int[size];
+        this.out1 = new int[size];
+        this.live = new int[size];
+        this.start = start;
+        Arrays.fill(out,  NONE);
+        Arrays.fill(out1, NONE);
+    }
+
+    /**
+     * Compile the graph starting at start into a program. The states must already have unique
+     * ids assigned by {@link State#assignIds(State)}.
+     */
+    public static Program compile(State start) {
+        return compile(start, 0);
+    }
+
+    /**
+     * Compile as for {@link #compile(State)}, where the groups in matchUses (in the same format as the
+     * {@link #live} masks) are used by the MATCH state, i.e., their spans are part of the result of a match,
+     * so they stay live until the end.
+     */
+    public static Program compile(State start, int matchUses) {
+        List<State> states = State.allStates(start);
+        int size = 1; // always leave room for MATCH at id 0, even if it isn't reachable
+        for (State s : states) {
+            checkState(s.id >= 0, "state without an id: %s", s);
+            size = Math.max(size, s.id + 1);
+        }
+        Program p = new Program(size, start.id);
+        boolean[] seen = new boolean[size];
+        p.op[0] = MATCH;
+        for (State s : states) {
+            checkState(!seen[s.id], "duplicate id %s", s.id);
+            seen[s.id] = true;
+            p.op[s.id] = s.type.ordinal();
+            p.data[s.id] = s.c;
+            if (s.out != null) {
+                p.out[s.id] = s.out.s.id;
+            }
+            if (s.out1 != null) {
+                p.out1[s.id] = s.out1.s.id;
+            }
+        }
+        checkState(p.op[0] == MATCH, "id 0 wasn't the MATCH state");
+        p.computeLiveness(matchUses);
+        return p;
+    }
+
+    /**
+     * The bit for group in the {@link #live} masks, or 0 for group 0 (which is never captured) and groups
+     * past 9 (which can't be referenced).
+     */
+    public static int groupBit(int group) {
+        return group >= 1 && group <= 9 ? 1 << (group - 1) : 0;
+    }
+
+    /* Backwards dataflow over the graph, iterated until the live sets stop changing. */
+    private void computeLiveness(int matchUses) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int s = size() - 1; s >= 0; s--) {
+                int l = 0;
+                if (out[s] != NONE) {
+                    l |= live[out[s]];
+                }
+                if (out1[s] != NONE) {
+                    l |= live[out1[s]];
+                }
+                switch (op[s]) {
+                case MATCH:
+                    l |= matchUses;
+                    break;
+                case BACKREF:
+                case RPAREN: // uses the start of the span
+                    l |= groupBit(data[s]);
+                    break;
+                case LPAREN:
+                    l &= ~groupBit(data[s]);
+                    break;
+                }
+                if (l != live[s]) {
+                    live[s] = l;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /** the number of states, i.e., one more than the largest id */
+    public int size() {
+        return op.length;
+    }
+
+    /** the type of the state with the given id */
+    public Type type(int id) {
+        return TYPES[op[id]];
+    }
+
+    /**
+     * If the state is a type which can match characters, return true if the given character
+     * matches, like {@link State#matches(char)}.
+     */
+    public boolean matches(int id, char c) {
+        switch (op[id]) {
+        case CHAR:
+            return data[id] == c;
+        case ANY:
+            return true;
+        case RANGE:
+            return c >= (data[id] & 0xFFFF) && c <= data[id] >>> 16;
+        case MATCH:
+            return false;
+        default:
+            throw new IllegalStateException("unexpected state in Program.matches: " + type(id));
+        }
+    }
+
+    /** true if any state in the program is a BACKREF */
+    public boolean hasBackrefs() {
+        for (int o : op) {
+            if (o == BACKREF) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(" ID  TYPE         DATA  OUT OUT1 LIVE (start=%d)\n", start));
+        for (int id = 0; id < size(); id++) {
+            sb.append(String.format("%4d %-12s %4d %4d %4d %4s\n", id, type(id), data[id], out[id], out1[id],
+                    Integer.toBinaryString(live[id])));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,70 @@
+package io.github.travisdowns.polyregex;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+/**
+ * A set of ints in the range [0, capacity), using the sparse/dense array representation of Briggs and
+ * Torczon (as in RE2's sparse set): add, contains and clear are all O(1) and don't allocate, and iteration
+ * (via {@link #get(int)}) is in insertion order.
+ */
+public final class SparseSet {
+
+    /** the members of the set, in insertion order, in dense[0, size) */
+    private final int[] dense;
+    /** sparse[v] is the index of v in dense, if v is in the set, otherwise it can be anything */
+    private final int[] sparse;
+    private int size;
+
+    public SparseSet(int capacity) {
+        checkArgument(capacity >= 0);
+        this.dense = new int[capacity];
+        this.sparse = new int[capacity];
+    }
+
+    /**
+     * Add v to the set.
+     * @return true if v was added, false if it was already present
+     */
+    public boolean add(int v) {
+        if (contains(v)) {
+            return false;
+        }
+        dense[size] = v;
+        sparse[v] = size++;
+        return true;
+    }
+
+    public boolean contains(int v) {
+        int i = sparse[v];
+        return i < size && dense[i] == v;
+    }
+
+    /** @return the i-th element added to the set */
+    public int get(int i) {
+        return dense[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return dense.length;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /** @return the members of the set, in insertion order */
+    public int[] toArray() {
+        return Arrays.copyOf(dense, size);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
@@ -3,7 +3,10 @@ package io.github.travisdowns.polyregex;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -25,7 +28,9 @@ public class State {
     public static State MATCHSTATE = new State(Type.MATCH, 0);
 
     public enum Type {
-        CHAR, ANY, SPLIT, MATCH, LPAREN, RPAREN, BACKREF, FORWARD, INVALID, MATCHNOTHING;
+        CHAR, ANY, SPLIT, MATCH, LPAREN, RPAREN, BACKREF, FORWARD, INVALID, MATCHNOTHING,
+        /** matches one char in an inclusive range, the low end in the low 16 bits of c, the high end above */
+        RANGE;
     }
 
     int id;
@@ -78,6 +83,8 @@ public class State {
             return c == testchar;
         case ANY:
             return true;
+        case RANGE:
+            return testchar >= (c & 0xFFFF) && testchar <= c >>> 16;
         case MATCH:
             return false;
         default:
@@ -127,6 +134,12 @@ public class State {
         return makeNoData(Type.ANY);
     }
 
+    /** a state matching any char from lo to hi inclusive */
+    public static State makeRange(char lo, char hi) {
+        checkArgument(lo <= hi, "empty range %s-%s", (int)lo, (int)hi);
+        return makeWithData(Type.RANGE, lo | hi << 16);
+    }
+
     public static State makeSplit(State out, State out1) {
         State s = new State(Type.SPLIT);
         s.out = new StateRef(out);
@@ -159,6 +172,9 @@ public class State {
         case CHAR:
             prefix = "CHAR[" + (char) c + "]";
             break;
+        case RANGE:
+            prefix = String.format("RANGE[%02x-%02x]", c & 0xFFFF, c >>> 16);
+            break;
         case SPLIT:
             if (recurse) {
                 prefix = "SPLIT[out=" + out.s.toString(false) + ",out1=" + out1.s.toString(false) + "]";
@@ -181,6 +197,139 @@ public class State {
         return new ArrayList<>(all);
     }
     
+    /**
+     * @return the number of captured groups in the graph starting at start, not counting the implicit
+     * outer group 0 which surrounds the entire pattern
+     */
+    public static int groupCount(State start) {
+        return (int)allStates(start).stream().filter(s -> s.type == Type.LPAREN && s.c != 0).count();
+    }
+
+    /**
+     * @return the distinct group numbers referenced by some BACKREF in the graph starting at start, in
+     * increasing order
+     */
+    public static int[] referencedGroups(State start) {
+        return allStates(start).stream().filter(s -> s.type == Type.BACKREF).mapToInt(s -> s.c)
+                .distinct().sorted().toArray();
+    }
+
+    /**
+     * Compiles the groups which are never referenced by a backref as non-capturing groups: their paren
+     * states are replaced by FORWARD states, and the referenced groups (and the backrefs referring to them)
+     * are renumbered densely from 1, in their original order. After this, the number of groups tracked in
+     * a {@link CaptureState} is just the number of referenced groups, see {@link #referencedGroups(State)},
+     * since unreferenced groups can't affect whether the pattern matches.
+     * <p>
+     * Must be called before {@link #assignIds(State)}, since the replacement states don't have ids.
+     *
+     * @return the start state of the modified graph, which is start unless start itself was replaced
+     */
+    public static State removeUnreferencedGroups(State start) {
+        return keepGroups(start, referencedGroups(start));
+    }
+
+    /**
+     * As for {@link #removeUnreferencedGroups(State)}, but the groups in kept are the ones which stay capturing,
+     * renumbered densely from 1 in their original order, e.g., the referenced groups plus those whose spans are
+     * wanted in the result of a match.
+     *
+     * @param kept the group numbers to keep, in increasing order, including every group referenced by a backref
+     * @return the start state of the modified graph, which is start unless start itself was replaced
+     */
+    public static State keepGroups(State start, int[] kept) {
+        List<State> allStates = allStates(start);
+        Map<State, State> oldToNew = new HashMap<>();
+        for (State s : allStates) {
+            if ((s.isParen() && s.c != 0) || s.type == Type.BACKREF) {
+                int slot = Arrays.binarySearch(kept, s.c);
+                if (slot >= 0) {
+                    s.c = slot + 1;
+                } else {
+                    checkState(s.isParen());
+                    State forward = makeNoData(Type.FORWARD);
+                    forward.out.s = s.out.s;
+                    oldToNew.put(s, forward);
+                }
+            }
+        }
+        replaceNodes(allStates, oldToNew, false);
+        // the replacements can point at replaced states too, e.g., for ((a))
+        replaceNodes(new ArrayList<>(oldToNew.values()), oldToNew, false);
+        return oldToNew.getOrDefault(start, start);
+    }
+
+    /**
+     * Lowers the graph to match the UTF-8 encoding of the text rather than its chars, where the text is given
+     * with one char per byte (so chars 0 to 255, as in ISO-8859-1), e.g., to match bytes read from a file
+     * without decoding them. Each CHAR state for a non-ASCII char is replaced by a chain of CHAR states for
+     * its UTF-8 bytes, and each ANY state by CHAR and RANGE states matching one well-formed UTF-8 encoded code
+     * point (of 1 to 4 bytes, so unlike ANY over chars it matches a supplementary code point as a single unit).
+     * Ill-formed UTF-8, such as an overlong encoding or an encoded surrogate, never matches ANY. Backrefs need no
+     * change: two captured byte sequences are equal exactly when the code points they encode are.
+     * <p>
+     * Must be called before {@link #assignIds(State)}, since the replacement states don't have ids.
+     *
+     * @return the start state of the modified graph, which is start unless start itself was replaced
+     */
+    public static State lowerToUtf8(State start) {
+        List<State> allStates = allStates(start);
+        Map<State, State> oldToNew = new HashMap<>();
+        // every state created, whose arrows can point at replaced states too, e.g., for ..
+        List<State> created = new ArrayList<>();
+        for (State s : allStates) {
+            if (s.type == Type.ANY) {
+                oldToNew.put(s, utf8CodePoint(s.out.s, created));
+            } else if (s.type == Type.CHAR && s.c >= 0x80) {
+                byte[] bytes = String.valueOf((char)s.c).getBytes(StandardCharsets.UTF_8);
+                State next = s.out.s;
+                for (int i = bytes.length - 1; i >= 0; i--) {
+                    next = utf8Byte(bytes[i] & 0xFF, bytes[i] & 0xFF, next, created);
+                }
+                oldToNew.put(s, next);
+            }
+        }
+        replaceNodes(allStates, oldToNew, false);
+        replaceNodes(created, oldToNew, false);
+        return oldToNew.getOrDefault(start, start);
+    }
+
+    /**
+     * States matching one well-formed UTF-8 encoded code point, followed by next, added to created. Only the
+     * shortest encoding of a code point up to U+10FFFF, other than a surrogate, is well-formed, which rules out
+     * some second bytes after E0, ED, F0 and F4, see table 3-7 of the Unicode standard.
+     */
+    private static State utf8CodePoint(State next, List<State> created) {
+        State cont1 = utf8Byte(0x80, 0xBF, next,  created);
+        State cont2 = utf8Byte(0x80, 0xBF, cont1, created);
+        State cont3 = utf8Byte(0x80, 0xBF, cont2, created);
+        State[] leads = {
+                utf8Byte(0x00, 0x7F, next, created),
+                utf8Byte(0xC2, 0xDF, cont1, created),
+                utf8Byte(0xE0, 0xE0, utf8Byte(0xA0, 0xBF, cont1, created), created),
+                utf8Byte(0xE1, 0xEC, cont2, created),
+                utf8Byte(0xED, 0xED, utf8Byte(0x80, 0x9F, cont1, created), created),
+                utf8Byte(0xEE, 0xEF, cont2, created),
+                utf8Byte(0xF0, 0xF0, utf8Byte(0x90, 0xBF, cont2, created), created),
+                utf8Byte(0xF1, 0xF3, cont3, created),
+                utf8Byte(0xF4, 0xF4, utf8Byte(0x80, 0x8F, cont2, created), created),
+        };
+        State ret = leads[leads.length - 1];
+        for (int i = leads.length - 2; i >= 0; i--) {
+            ret = makeSplit(leads[i], ret);
+            created.add(ret);
+        }
+        return ret;
+    }
+
+    /** a CHAR (if lo == hi) or RANGE state matching a byte from lo to hi, followed by next, added to created */
+    private static State utf8Byte(int lo, int hi, State next, List<State> created) {
+        State s = lo == hi ? makeChar((char)lo) : makeRange((char)lo, (char)hi);
+        s.out.s = next;
+        created.add(s);
+        return s;
+    }
+
     /** assigns IDs starting from 1 to all the states reachable from s */
     public static void assignIds(State start) {
         List<State> states = allStates(start);
@@ -264,6 +413,25 @@ public class State {
         checkState(!newStates.stream().anyMatch(s -> s.type == Type.BACKREF)); // no more backrefs!
     }
     
+    /**
+     * Expand a single backref, like {@link #expandBackrefs(State, String, CaptureState, Function)} but without
+     * modifying the graph: the expansion is made of new states and its last state has a new arrow to the
+     * state after the backref.
+     * 
+     * @return the first state of the expansion, which has the id of the backref
+     */
+    public static State expandBackref(State backref, String text, CaptureState capstate,
+            Function<State, ? extends State> cloner) {
+        checkArgument(backref.type == Type.BACKREF);
+        checkState(backref.outRefs() == 1);
+        int refidx = backref.c;
+        checkState(refidx <= capstate.size());
+        List<State> charSeries = makeStringMatcher(backref.id, text, capstate.start(refidx),
+                capstate.end(refidx), cloner);
+        charSeries.get(charSeries.size() - 1).out = new StateRef(backref.out.s);
+        return charSeries.get(0);
+    }
+    
     public static String printStates(State start) {
         StringBuilder sb = new StringBuilder();
         sb.append(String.format(" ID  TYPE   OUT-ARROWS\n"));
@@ -305,14 +473,14 @@ public class State {
         checkState(start <= text.length());
         checkState(end <= text.length());
 
-        if ((start == -1 && end != -1) || (start > end)) {
+        if ((start == -1 && end != -1) || (end != -1 && start > end)) {
             // not possible
             return Collections.singletonList(cloner.apply(State.makeNoData(Type.INVALID, id)));
         }
         
         if (end == -1) {
-            // group hasn't been captured yet - note that if start != -1 we have a nested backref and
-            // may want to handle those differently
+            // group hasn't been captured yet, or if start != -1 it's still open, as for the nested backref
+            // in (a\1), which never matches either
             return Collections.singletonList(cloner.apply(State.makeNoData(Type.MATCHNOTHING, id)));
         }
         
@@ -351,17 +519,25 @@ public class State {
         }
     }
 
+    /**
+     * Adds all states reachable from start to all, in depth-first order following out before out1. Uses an
+     * explicit stack, since the graph can be much deeper than the thread stack would allow for recursion.
+     */
     @SuppressWarnings("unchecked")
-    private static <T extends State> void allStatesHelper(T s, LinkedHashSet<T> all) {
-        if (!all.contains(s)) {
-            all.add(s);
-            if (s.out != null) {
-                allStatesHelper((T)s.out.s, all);
-                if (s.out1 != null) {
-                    allStatesHelper((T)s.out1.s, all);
+    private static <T extends State> void allStatesHelper(T start, LinkedHashSet<T> all) {
+        ArrayDeque<T> stack = new ArrayDeque<>();
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            T s = stack.pop();
+            if (all.add(s)) {
+                if (s.out != null) {
+                    if (s.out1 != null) {
+                        stack.push((T)s.out1.s);
+                    }
+                    stack.push((T)s.out.s);
+                } else {
+                    checkState(s.out1 == null);  // out1 can't be set if out isn't
                 }
-            } else {
-                checkState(s.out1 == null);  // out1 can't be set if out isn't
             }
         }
     }
@@ -1,103 +1,114 @@
 package io.github.travisdowns.polyregex.obsolete;
 
-import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
-import java.util.HashSet;
-import java.util.Set;
-
-import com.google.common.base.Joiner;
-
-import io.github.travisdowns.polyregex.State;
+import io.github.travisdowns.polyregex.IntStack;
+import io.github.travisdowns.polyregex.Program;
+import io.github.travisdowns.polyregex.SparseSet;
 import io.github.travisdowns.polyregex.Verbose;
 
 /**
  * Based on match and associated functions from https://swtch.com/~rsc/regexp/nfa.c.txt originally written by Russ Cox,
  * converted to Java by Travis Downs.
+ * <p>
+ * Runs off the flat {@link Program} representation of the NFA, so states are just int ids, and the two state
+ * lists are sparse sets allocated once per runner and swapped after each step, so matching doesn't allocate.
+ * Unlabeled arrows are followed with an explicit stack rather than by recursion, so the depth of the NFA
+ * isn't limited by the thread stack size.
  * 
  * MIT license, see LICENSE file.
  */
 public class NFARunner {
     
-    int maxdepth = 0;
+    private final Program prog;
+    /** the stack used by addstate, reused for every call */
+    private final IntStack stack = new IntStack();
+    /*
+     * typedef struct List List; struct List { State **s; int n; };
+     * 
+     * List l1, l2; static int listid;
+     * 
+     * void addstate(List*, State*); void step(List*, int, List*);
+     */
+    private StateList clist, nlist;
 
-    private class StateList {
-        private final Set<State> stateSet;
+    private NFARunner(Program prog) {
+        this.prog = prog;
+        this.clist = new StateList();
+        this.nlist = new StateList();
+    }
 
-        public StateList() {
-            this.stateSet = new HashSet<>();
-        }
+    private class StateList {
+        /** all states visited, including SPLIT states which don't need to be stepped */
+        private final SparseSet stateSet = new SparseSet(prog.size());
 
         /* Add s to l, following unlabeled arrows. */
-        void addstate(State s, int depth) {
-            checkNotNull(s);
-            maxdepth = Math.max(maxdepth, depth);
-            if (stateSet.add(s)) {
-                if (s.type == State.Type.SPLIT) {
-                    /* follow unlabeled arrows */
-                    addstate(s.out.s, depth + 1);
-                    addstate(s.out1.s, depth + 1);
-                } else {
-                    checkState(!s.isParen(), "this runner doesn't support parens");
-                    stateSet.add(s);
+        void addstate(int start) {
+            stack.push(start);
+            while (!stack.isEmpty()) {
+                int s = stack.pop();
+                checkState(s != Program.NONE);
+                if (stateSet.add(s)) {
+                    if (prog.op[s] == Program.SPLIT) {
+                        /* follow unlabeled arrows, pushed in reverse order so out is followed first */
+                        stack.push(prog.out1[s]);
+                        stack.push(prog.out [s]);
+                    } else {
+                        checkState(prog.op[s] != Program.LPAREN && prog.op[s] != Program.RPAREN,
+                                "this runner doesn't support parens");
+                    }
                 }
             }
         }
 
         /* Check whether state list contains a match. */
         boolean ismatch() {
-            return stateSet.stream().anyMatch(s -> s == State.MATCHSTATE);
+            return stateSet.contains(0); // MATCH is always id 0
         }
 
         @Override
         public String toString() {
-            return Joiner.on(", ").join(stateSet);
+            return stateSet.toString();
         }
     }
-    /*
-     * typedef struct List List; struct List { State **s; int n; };
-     * 
-     * List l1, l2; static int listid;
-     * 
-     * void addstate(List*, State*); void step(List*, int, List*);
-     */
 
     /* Compute initial state list */
-    private StateList startlist(State start) {
-        // TODO: currently we can only run once against State objects because we
-        // don't reset the generation counter - just get rid of that mechanism?
-        StateList l = new StateList();
-        l.addstate(start, 1);
-        return l;
+    private void startlist() {
+        clist.stateSet.clear();
+        clist.addstate(prog.start);
     }
 
     /*
-     * Step the NFA from the states in clist past the character c, returns the new NFA state list.
+     * Step the NFA from the states in clist past the character c, leaving the new NFA state list in clist.
      */
-    private StateList step(StateList clist, int c) {
-        StateList nlist = new StateList();
-        for (State s : clist.stateSet) {
-            if (s.type == State.Type.ANY || (s.type == State.Type.CHAR && s.c == c)) {
-                nlist.addstate(s.out.s, 1);
+    private void step(int c) {
+        nlist.stateSet.clear();
+        SparseSet states = clist.stateSet;
+        for (int i = 0; i < states.size(); i++) {
+            int s = states.get(i);
+            if (prog.op[s] == Program.ANY || (prog.op[s] == Program.CHAR && prog.data[s] == c)) {
+                nlist.addstate(prog.out[s]);
             }
         }
-        return nlist;
+        StateList temp = clist;
+        clist = nlist;
+        nlist = temp;
     }
 
     /* Run NFA to determine whether it matches s. */
-    private boolean match(State start, String str) {
-        StateList list = startlist(start);
+    private boolean match(String str) {
+        startlist();
         for (int i = 0; i < str.length(); i++) {
             char c = str.charAt(i);
-            list = step(list, c);
+            step(c);
         }
-        return list.ismatch();
+        return clist.ismatch();
     }
 
-    public static boolean matches(State start, String str) {
-        NFARunner r = new NFARunner();
-        boolean ret = r.match(start, str);
-        Verbose.verbose("max depth while matching against %s : %s", str, r.maxdepth);
+    public static boolean matches(Program prog, String str) {
+        NFARunner r = new NFARunner(prog);
+        boolean ret = r.match(str);
+        Verbose.verbose("max stack depth while matching against %s : %s", str, r.stack.maxSize());
         return ret;
     }
 
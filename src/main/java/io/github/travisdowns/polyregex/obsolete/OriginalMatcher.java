@@ -3,20 +3,36 @@ package io.github.travisdowns.polyregex.obsolete;
 import java.util.List;
 
 import io.github.travisdowns.polyregex.Matcher;
+import io.github.travisdowns.polyregex.Program;
 import io.github.travisdowns.polyregex.State;
 
 public class OriginalMatcher implements Matcher {
     
-    private final State start;
+    private final Program prog;
+    private final String pattern;
+    /** the matcher for .*pattern.*, used by find, created the first time it is needed */
+    private OriginalMatcher findMatcher;
     
     public OriginalMatcher(String pattern) {
+        this.pattern = pattern;
         List<Token> tokens = Parser.toPostfix(pattern);
-        this.start = NFABuilder.postToNFA(tokens);
+        State start = NFABuilder.postToNFA(tokens);
+        State.assignIds(start);
+        this.prog = Program.compile(start);
     }
 
     @Override
     public boolean matches(String text) {
-        return NFARunner.matches(start, text);
+        return NFARunner.matches(prog, text);
+    }
+
+    /** this matcher has no search mode, so this just matches against the pattern wrapped in .* */
+    @Override
+    public boolean find(String text) {
+        if (findMatcher == null) {
+            findMatcher = new OriginalMatcher(".*" + pattern + ".*");
+        }
+        return findMatcher.matches(text);
     }
 
     public static boolean matches(String pattern, String text) {
@@ -34,12 +34,35 @@ public class BackrefTest {
         public boolean matches(String text) {
             return pattern.matcher(text).matches();
         }
+
+        @Override
+        public boolean find(String text) {
+            return pattern.matcher(text).find();
+        }
+    }
+    
+    /** PikeMatcher without thread deduplication */
+    static class PikeNoDedupMatcher extends PikeMatcher {
+        public PikeNoDedupMatcher(String pattern) {
+            super(pattern, false);
+        }
+    }
+    
+    /** lazy BackrefMatcher with two prefetch threads */
+    static class BackrefPrefetchMatcher extends BackrefMatcher {
+        public BackrefPrefetchMatcher(String pattern) {
+            super(pattern, false, 1, 2);
+        }
     }
     
     @Parameters(name = "{0}")
     public static List<Class<?>[]> getMatcherFactories() {
         return ImmutableList.of(
                 new Class<?>[]{ BackrefMatcher.class },
+                new Class<?>[]{ BackrefPrefetchMatcher.class },
+                new Class<?>[]{ PikeMatcher.class },
+                new Class<?>[]{ PikeNoDedupMatcher.class },
+                new Class<?>[]{ BacktrackMatcher.class },
                 new Class<?>[]{ JavaMatcher.class }
                 );
     }
@@ -105,6 +128,38 @@ public class BackrefTest {
         assertFalse(matches("(.*)\\1", "ab"));
     }
 	
+	/** many different spans capture the same text here */
+	@Test
+	public void testRepetitiveText() {
+	    String a20 = Strings.repeat("a", 20);
+	    assertTrue (matches("(a+)b\\1", a20 + "b" + a20));
+	    assertFalse(matches("(a+)b\\1", a20 + "b" + a20 + "b"));
+	    assertTrue (matches(".*(a+)b\\1.*\\1c", a20 + "ba" + a20 + "c"));
+	    assertFalse(matches("(a+)(a+)b\\2\\1", a20 + "b" + "a"));
+	}
+
+	/** long enough that BackrefMatcher evicts SubNFAs which are no longer active along the way */
+	@Test
+	public void testLongLine() {
+	    StringBuilder sb = new StringBuilder();
+	    for (int i = 0; i < 300; i++) {
+	        sb.append("abbc").append(i % 10);
+	    }
+	    String text = sb.toString();
+	    assertFalse(matches(".*(ab+)c\\1.*", text));
+	    assertTrue (matches(".*(ab+)c\\1.*", text + "abbbcabbb"));
+	    assertTrue (matches(".*(ab+)c\\1.*", "abbbcabbb" + text));
+	}
+
+	@Test
+	public void testUnreferencedGroups() {
+	    assertTrue (matches("(a)(b)(c)\\3", "abcc"));
+	    assertFalse(matches("(a)(b)(c)\\3", "abca"));
+	    assertTrue (matches("((a|b)+)(x)\\2\\1", "abxbab"));
+	    assertFalse(matches("((a|b)+)(x)\\2\\1", "abxaab"));
+	    assertTrue (matches("(a)(b)(c)(d)(e)(f)(g)(h)(i)(j)\\9", "abcdefghiji"));
+	}
+
 	@Test
 	public void testMatchnothing() {
 	    // (a) group doesn't match, so the subsequent \1 can't match anything, this is
@@ -191,6 +246,44 @@ public class BackrefTest {
 	    assertTrue (matches(find2, "qwertyuiopasdfghjklzxcvbnmziop"));
 	}
 	
+	@Test
+	public void testFindBackrefs() {
+	    assertTrue (matcherFor("(a+)b\\1").find("xxaabaax"));
+	    assertTrue (matcherFor("(a+)b\\1").find("xxaaba"));
+	    assertFalse(matcherFor("(a+)b\\1").find("xxbx"));
+	    assertTrue (matcherFor("(.)\\1").find("abcdeffgh"));
+	    assertFalse(matcherFor("(.)\\1").find("abcdefgh"));
+	    assertTrue (matcherFor("(.*)(.)\\2\\1").find("qwertyzzqwert"));
+	    assertTrue (matcherFor("(dogs|cats).*\\1").find("I like cats but not dogs, and cats like mice"));
+	    assertFalse(matcherFor("(dogs|cats).*\\1").find("I like cats but not dogs, and mice like mice"));
+	}
+	
+	@Test
+	public void testOpenGroupBackref() {
+	    // a backref inside the group it refers to never matches
+	    assertFalse(matches("(a\\1)", "a"));
+	    assertFalse(matches("(a\\1)", "aa"));
+	    assertTrue (matches("(a\\1|b)", "b"));
+	    assertTrue (matches("(a\\1|b)*c", "bbc"));
+	    assertTrue (matcherFor("(a\\1)|b").find("xab"));
+	    assertFalse(matcherFor("(a*\\1)x").find("aax"));
+	}
+	
+	@Test
+	public void testReuseAndShutdown() {
+	    // the prefetch threads are kept across runs, and can be restarted after a shutdown
+	    Matcher m = matcherFor("(a*)b\\1");
+	    for (int i = 0; i < 50; i++) {
+	        assertTrue (m.matches("aaabaaa"));
+	        assertFalse(m.matches("aaabaa"));
+	    }
+	    if (m instanceof BackrefMatcher) {
+	        ((BackrefMatcher)m).shutdown();
+	        ((BackrefMatcher)m).shutdown();
+	    }
+	    assertTrue (m.matches("aaabaaa"));
+	}
+	
 	@Test
 	public void testBacktrackingBlowup() {
 	    String bang = "(?:(.*)(.*)\\1\\2)*";
@@ -0,0 +1,95 @@
+package io.github.travisdowns.polyregex;
+
+import static org.junit.Assert.*;
+
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class CaptureResultTest {
+
+    @Test
+    public void testMatchResult() {
+        checkMatch("abc", "abc");
+        checkMatch("a(b)c", "abc");
+        checkMatch("(a*)(b*)", "aabbb");
+        checkMatch("(a*)(a*)", "aaa");
+        checkMatch("(a|(b))*", "aba");
+        checkMatch("(x)?y", "y");
+        checkMatch("((a)b)+", "ababab");
+        checkMatch("(.*)-\\1", "abc-abc");
+        checkMatch("(a)(b)(c)(d)(e)(f)(g)(h)", "abcdefgh");
+        assertNull(new BackrefMatcher("(.*)-\\1").matchResult("abc-abd"));
+    }
+
+    @Test
+    public void testFindResult() {
+        BackrefMatcher m = new BackrefMatcher("(a+)(b*)", new int[]{ 1, 2 });
+        CaptureResult r = m.findResult("xxaabbyab", 0);
+        assertEquals("aabb", r.group());
+        assertEquals(2, r.start());
+        assertEquals(6, r.end());
+        assertEquals("aa", r.group(1));
+        assertEquals("bb", r.group(2));
+        r = m.findResult("xxaabbyab", r.end());
+        assertEquals("ab", r.group());
+        assertEquals(7, r.start(1));
+        assertNull(m.findResult("xxaabbyab", r.end()));
+
+        // leftmost, then longest
+        assertEquals("abcd", new BackrefMatcher("abcd|c").findResult("xabcd", 0).group());
+        assertEquals("cats like cats", new BackrefMatcher("(dogs|cats).*\\1").findResult(" cats like cats ", 0)
+                .group());
+        assertNull(new BackrefMatcher("(dogs|cats).*\\1").findResult(" dogs like cats ", 0));
+    }
+
+    @Test
+    public void testGroupBounds() {
+        CaptureResult r = new BackrefMatcher("(a)(x)?", new int[]{ 1, 2 }).matchResult("a");
+        assertEquals(2, r.groupCount());
+        assertNull(r.group(2));
+        assertEquals(-1, r.start(2));
+        try {
+            r.group(3);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {}
+    }
+
+    @Test
+    public void testUntrackedGroups() {
+        // only the whole match and the groups asked for are reported, so any number of groups is fine
+        String pattern = "(a)(b)(c)(d)(e)(f)(g)(h)(i)(j)(k)\\1";
+        CaptureResult r = new BackrefMatcher(pattern, new int[]{ 11 }).findResult("xabcdefghijka", 0);
+        assertEquals(11, r.groupCount());
+        assertEquals("abcdefghijka", r.group());
+        assertEquals("k", r.group(11));
+        try {
+            r.group(2);
+            fail();
+        } catch (IllegalStateException expected) {}
+        try {
+            new BackrefMatcher(pattern, new int[]{ 2, 3, 4, 5, 6, 7, 8, 9, 10 });
+            fail();
+        } catch (IllegalArgumentException expected) {} // 10 tracked groups, counting the referenced group 1
+        try {
+            new BackrefMatcher(pattern, new int[]{ 12 });
+            fail();
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    /** check the result against java.util.regex */
+    private static void checkMatch(String pattern, String text) {
+        java.util.regex.Matcher expected = Pattern.compile(pattern).matcher(text);
+        assertTrue(expected.matches());
+        int[] groups = IntStream.rangeClosed(1, expected.groupCount()).toArray();
+        CaptureResult actual = new BackrefMatcher(pattern, groups).matchResult(text);
+        assertNotNull(actual);
+        assertEquals(expected.groupCount(), actual.groupCount());
+        for (int g = 0; g <= expected.groupCount(); g++) {
+            assertEquals(pattern + " group " + g, expected.group(g), actual.group(g));
+            assertEquals(pattern + " start " + g, expected.start(g), actual.start(g));
+            assertEquals(pattern + " end " + g, expected.end(g), actual.end(g));
+        }
+    }
+}
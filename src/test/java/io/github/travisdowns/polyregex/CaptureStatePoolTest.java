@@ -0,0 +1,78 @@
+package io.github.travisdowns.polyregex;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CaptureStatePoolTest {
+
+    @Test
+    public void testTransitions() {
+        CaptureStatePool pool = new CaptureStatePool(2, 5);
+        int unset = pool.unset();
+        assertEquals(unset, pool.unset());
+        assertEquals(new CaptureState(new int[]{-1, -1}, new int[]{-1, -1}, 5), pool.get(unset));
+
+        int started = pool.withStart(unset, 2, 1);
+        assertEquals(started, pool.withStart(unset, 2, 1));
+        assertEquals(1, pool.start(started, 2));
+        assertEquals(-1, pool.end(started, 2));
+
+        int closed = pool.withEnd(started, 2, 3);
+        CaptureState cs = pool.get(closed);
+        assertEquals(cs.withStart(2, 1), pool.get(pool.withStart(closed, 2, 1)));
+        assertEquals(closed, pool.intern(new CaptureState(new int[]{-1, 1}, new int[]{-1, 3}, 5)));
+
+        assertEquals(closed, pool.withLive(closed, 0b10));
+        assertEquals(unset, pool.withLive(closed, 0b01));
+        assertEquals(3, pool.size());
+    }
+
+    @Test
+    public void testGrow() {
+        CaptureStatePool pool = new CaptureStatePool(1, 1000);
+        int unset = pool.unset();
+        for (int i = 0; i <= 1000; i++) {
+            int id = pool.withStart(unset, 1, i);
+            assertEquals(i + 1, id);
+            assertEquals(i, pool.start(id, 1));
+        }
+        for (int i = 0; i <= 1000; i++) {
+            assertEquals(i + 1, pool.withStart(unset, 1, i));
+        }
+        assertEquals(1002, pool.size());
+    }
+
+    @Test
+    public void testInterner() {
+        String text = "abcabc";
+        CaptureStatePool pool = new CaptureStatePool(1, text.length());
+        CaptureInterner interner = new CaptureInterner(text, pool);
+        int first  = pool.withEnd(pool.withStart(pool.unset(), 1, 0), 1, 3);
+        int second = pool.withEnd(pool.withStart(pool.unset(), 1, 3), 1, 6);
+        int other  = pool.withEnd(pool.withStart(pool.unset(), 1, 1), 1, 4);
+        assertEquals(first, interner.intern(first));
+        assertEquals(first, interner.intern(second));
+        assertEquals(other, interner.intern(other));
+        // open groups are compared by position
+        int open = pool.withStart(pool.unset(), 1, 3);
+        assertEquals(open, interner.intern(open));
+    }
+
+    @Test
+    public void testWithLiveManyGroups() {
+        // with an empty text the position field of a transition key is narrower than a live mask
+        CaptureStatePool pool = new CaptureStatePool(9, 0);
+        int[] ids = new int[10];
+        ids[0] = pool.unset();
+        for (int g = 1; g <= 9; g++) {
+            ids[g] = pool.withStart(ids[g - 1], g, 0);
+        }
+        for (int id : ids) {
+            for (int mask = 0; mask < 1 << 9; mask++) {
+                assertEquals("id " + id + " mask " + mask, pool.intern(pool.get(id).withLive(mask)),
+                        pool.withLive(id, mask));
+            }
+        }
+    }
+}
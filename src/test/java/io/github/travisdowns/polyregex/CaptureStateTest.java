@@ -0,0 +1,68 @@
+package io.github.travisdowns.polyregex;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class CaptureStateTest {
+
+    /** long enough that capture states aren't packed */
+    private static final int LONG_TEXT = 100_000;
+
+    @Test
+    public void testPackedMatchesArrays() {
+        for (int textlen : new int[]{ 10, LONG_TEXT }) {
+            CaptureState cs = new CaptureState(new int[]{-1, 2, -1}, new int[]{-1, -1, -1}, textlen);
+            assertEquals(2, cs.start(2));
+            assertEquals(-1, cs.end(2));
+            cs = cs.withEnd(2, 5).withStart(1, 0).withStart(3, 10);
+            assertEquals("(0,-1)(2,5), (10,-1), ", cs.str());
+            assertEquals(new CaptureState(new int[]{0, 2, 10}, new int[]{-1, 5, -1}, textlen), cs);
+            assertEquals(new CaptureState(new int[]{-1, 2, -1}, new int[]{-1, 5, -1}, textlen), cs.withLive(0b010));
+            assertTrue(cs.withLive(0).isUnset());
+        }
+    }
+
+    @Test
+    public void testEqualsAcrossRepresentations() {
+        CaptureState packed = new CaptureState(new int[]{1, 2}, new int[]{3, -1}, 10);
+        CaptureState arrays = new CaptureState(new int[]{1, 2}, new int[]{3, -1}, LONG_TEXT);
+        assertEquals(packed, arrays);
+        assertEquals(arrays, packed);
+        assertEquals(packed.hashCode(), arrays.hashCode());
+        assertNotEquals(packed, arrays.withStart(2, 4));
+
+        // too many groups to pack
+        int[] six = {0, 1, 2, 3, 4, 5};
+        CaptureState wide = new CaptureState(six, six.clone(), 10);
+        assertEquals(6, wide.size());
+        assertEquals(wide, new CaptureState(six, six.clone(), 10));
+        assertEquals(9, wide.withEnd(6, 9).end(6));
+
+        // the largest positions which fit
+        int max = 65534;
+        assertTrue(CaptureState.isPackable(4, max));
+        assertFalse(CaptureState.isPackable(4, max + 1));
+        CaptureState big = new CaptureState(new int[]{max}, new int[]{-1}, max).withEnd(1, max);
+        assertEquals(max, big.start(1));
+        assertEquals(max, big.end(1));
+    }
+
+    @Test
+    public void testMoreSlotsThanBackrefs() {
+        // only \1 to \9 can be read back, but a state can have any number of slots, as in CompileBenchmark
+        int[] starts = new int[12], ends = new int[12];
+        Arrays.fill(ends, 5);
+        CaptureState cs = new CaptureState(starts, ends, 5);
+        assertEquals(12, cs.size());
+        assertFalse(cs.isUnset());
+        assertEquals(cs, new CaptureState(starts.clone(), ends.clone(), 5));
+        assertEquals(5, cs.end(9));
+        // slots past 9 still count for equality
+        int[] other = ends.clone();
+        other[11] = 4;
+        assertNotEquals(cs, new CaptureState(starts.clone(), other, 5));
+    }
+}
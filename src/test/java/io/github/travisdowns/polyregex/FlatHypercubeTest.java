@@ -0,0 +1,59 @@
+package io.github.travisdowns.polyregex;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FlatHypercubeTest {
+
+    @Test
+    public void testTwoDim() {
+        FlatHypercube<Integer> cube = new FlatHypercube<>(2, 2);
+        assertEquals(4, cube.size());
+        assertEquals(null, cube.get(1, 1));
+
+        cube.set( 0, 0, 0);
+        cube.set(10, 1, 0);
+        cube.set(20, 0, 1);
+
+        assertEquals(Integer.valueOf( 0), cube.get(0, 0));
+        assertEquals(Integer.valueOf(20), cube.get(0, 1));
+        assertEquals(Integer.valueOf(10), cube.get(1, 0));
+        assertEquals(               null, cube.get(1, 1));
+        assertEquals(Integer.valueOf(10), cube.getAt(cube.index(1, 0)));
+    }
+
+    @Test
+    public void testIndices() {
+        FlatHypercube<Integer> cube = new FlatHypercube<>(3, 4);
+        assertEquals(64, cube.size());
+        int[] indices = new int[3];
+        for (int i = 0; i < cube.size(); i++) {
+            cube.indices(i, indices);
+            assertEquals(i, cube.index(indices));
+        }
+        assertEquals(1 * 16 + 2 * 4 + 3, cube.index(1, 2, 3));
+
+        FlatHypercube<String> point = new FlatHypercube<>(0, 5);
+        assertEquals(1, point.size());
+        point.set("x");
+        assertEquals("x", point.get());
+    }
+
+    @Test
+    public void testOOB() {
+        FlatHypercube<Integer> cube = new FlatHypercube<>(2, 2);
+        try {
+            cube.get(2, 0); // would alias (1, 1) without the bounds check
+            fail();
+        } catch (IndexOutOfBoundsException expected) {}
+        try {
+            cube.get(0);
+            fail();
+        } catch (IllegalArgumentException expected) {}
+        try {
+            new FlatHypercube<>(8, 1000);
+            fail();
+        } catch (IllegalArgumentException expected) {}
+    }
+}
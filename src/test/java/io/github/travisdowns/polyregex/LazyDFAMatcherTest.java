@@ -0,0 +1,41 @@
+package io.github.travisdowns.polyregex;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LazyDFAMatcherTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsBackrefs() {
+        new LazyDFAMatcher("(a)\\1");
+    }
+
+    @Test
+    public void testNoFlushWhenCacheIsLarge() {
+        LazyDFAMatcher m = new LazyDFAMatcher(".*(dogs|cats).*");
+        assertTrue (m.matches("I like cats"));
+        assertFalse(m.matches("I like birds"));
+        assertTrue (m.matches("dogs"));
+        assertEquals(0, m.flushCount());
+    }
+
+    /** with a small cache the DFA is flushed over and over, but must still agree with the NFA */
+    @Test
+    public void testFlushing() {
+        String pattern = "(a|b)*a(a|b)(a|b)(a|b)(a|b)";
+        LazyDFAMatcher dfa = new LazyDFAMatcher(pattern, 2000);
+        Matcher nfa = new PikeMatcher(pattern);
+        Random r = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int j = r.nextInt(40); j > 0; j--) {
+                text.append(r.nextBoolean() ? 'a' : 'b');
+            }
+            assertEquals(text.toString(), nfa.matches(text.toString()), dfa.matches(text.toString()));
+        }
+        assertTrue(dfa.flushCount() > 0);
+    }
+}
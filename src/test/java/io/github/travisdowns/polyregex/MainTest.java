@@ -0,0 +1,99 @@
+package io.github.travisdowns.polyregex;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.google.common.collect.ObjectArrays;
+
+public class MainTest {
+
+    @Test
+    public void testLoneCarriageReturn() throws IOException {
+        byte[] input = "abc\rxbx\r\nb\ncd\r".getBytes(StandardCharsets.US_ASCII);
+        assertEquals("abc\nxbx\nb\n", grepBoth(input, "b"));
+        assertEquals("bc\nbx\n", grepBoth(input, "-o", "b."));
+        assertEquals("cd\n", grepBoth(input, "d"));
+    }
+
+    @Test
+    public void testIllFormedUtf8() throws IOException {
+        // 0xFF is never part of well-formed UTF-8, and 0xC3 0xA9 is é
+        byte[] input = bytes("x", 0xFF, "bad\nxybad\n", 0xC3, 0xA9, "bad\n", 0xC3, "\n");
+        // '.' matches a whole code point, but not an ill-formed byte, whether the bytes come from a file or stdin
+        assertEquals("xybad\n", grepBoth(input, "..bad"));
+        assertEquals("ybad\n\u00e9bad\n", grepBoth(input, "-o", ".bad"));
+        assertEquals("xybad\n", grepBoth(input, "x.bad"));
+        // ill-formed lines can still be matched by their well-formed parts, and are printed as they are
+        assertArrayEquals(bytes("x", 0xFF, "bad\nxybad\n"), grepBothBytes(input, "x"));
+    }
+
+    @Test
+    public void testOnlyMatching() throws IOException {
+        byte[] input = "xabcdefghijk-abcdefghijka\nab\u00e9c\n".getBytes(StandardCharsets.UTF_8);
+        // the matches are found by the planned engine, whatever the number of groups
+        assertEquals("abcdefghijka\n", grepBoth(input, "-o", "(a)(b)(c)(d)(e)(f)(g)(h)(i)(j)(k)\\1"));
+        assertEquals("abcdefghijk\nabcdefghijk\n", grepBoth(input, "-o", "(a)(b)(c)(d)(e)(f)(g)(h)(i)(j)(k)"));
+        // literals, with the .* spanning whole code points
+        assertEquals("cdefghijk-abcdefghijka\nc\n", grepBoth(input, "-o", "c.*"));
+        assertEquals("ab\nab\nab\n", grepBoth(input, "-o", "ab"));
+        assertEquals("abc\nabc\nab\u00e9\n", grepBoth(input, "-o", "ab."));
+    }
+
+    /** the bytes of each arg, a String as ASCII or an Integer as a single byte */
+    private static byte[] bytes(Object... args) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Object arg : args) {
+            if (arg instanceof String) {
+                byte[] b = ((String)arg).getBytes(StandardCharsets.US_ASCII);
+                out.write(b, 0, b.length);
+            } else {
+                out.write((Integer)arg);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /** grep input both as a file and from stdin, check that both print the same thing, and return it as UTF-8 */
+    private static String grepBoth(byte[] input, String... args) throws IOException {
+        return new String(grepBothBytes(input, args), StandardCharsets.UTF_8);
+    }
+
+    /** grep input both as a file and from stdin, check that both print the same bytes, and return them */
+    private static byte[] grepBothBytes(byte[] input, String... args) throws IOException {
+        File file = File.createTempFile("grep", ".txt");
+        try {
+            Files.write(file.toPath(), input);
+            byte[] fromFile = grep(new byte[0], ObjectArrays.concat(args, file.getPath()));
+            assertArrayEquals("stdin and file differ", fromFile, grep(input, args));
+            return fromFile;
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** run grep with args, with stdin as its standard input, and return what it printed */
+    private static byte[] grep(byte[] stdin, String... args) throws IOException {
+        InputStream oldIn = System.in;
+        PrintStream oldOut = System.out;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            System.setIn(new ByteArrayInputStream(stdin));
+            System.setOut(new PrintStream(out, true));
+            Main.main(args);
+        } finally {
+            System.setIn(oldIn);
+            System.setOut(oldOut);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,94 @@
+package io.github.travisdowns.polyregex;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.io.CharStreams;
+
+public class MappedLineScannerTest {
+
+    @Test
+    public void testLines() throws IOException {
+        checkLines("", Arrays.asList());
+        checkLines("abc", Arrays.asList("abc"));
+        checkLines("abc\n", Arrays.asList("abc"));
+        checkLines("abc\ndef\n\nghi", Arrays.asList("abc", "def", "", "ghi"));
+        checkLines("abc\r\ndef\r\n\r\n", Arrays.asList("abc", "def", ""));
+        checkLines("\n\n", Arrays.asList("", ""));
+        // a lone \r ends a line too, like CharStreams.readLines
+        checkLines("abc\rdef\r\rghi\r", Arrays.asList("abc", "def", "", "ghi"));
+        checkLines("a\r\r\nb\n\rc", Arrays.asList("a", "", "b", "", "c"));
+        String longLine = Strings.repeat("x", 100);
+        checkLines("ab\n" + longLine + "\ncd\n" + longLine, Arrays.asList("ab", longLine, "cd", longLine));
+    }
+
+    @Test
+    public void testLineView() throws IOException {
+        List<String> found = new ArrayList<>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        scan("café\nabc\n", 4, line -> {
+            found.add(line.isAscii() + " " + line.decode() + " " + line.length());
+            line.writeTo(out);
+        });
+        // é is two chars in the byte view
+        assertEquals(Arrays.asList("false café 5", "true abc 3"), found);
+        assertEquals("caféabc", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testFindInView() throws IOException {
+        Matcher dfa = new LazyDFAMatcher("b+c"), literal = Planner.newMatcher("bc");
+        List<String> found = new ArrayList<>();
+        scan("abbc\nxyz\nbc\n", 3, line -> {
+            assertEquals(dfa.find(line), literal.find(line));
+            if (dfa.find(line)) {
+                found.add(line.subSequence(0, line.length()).toString());
+            }
+        });
+        assertEquals(Arrays.asList("abbc", "bc"), found);
+    }
+
+    /** check that every window and buffer size gives the expected lines, the same lines as grep reading stdin */
+    private static void checkLines(String text, List<String> expected) throws IOException {
+        assertEquals("readLines", expected, CharStreams.readLines(new StringReader(text)));
+        for (int window = 1; window <= text.length() + 1; window++) {
+            List<String> lines = new ArrayList<>();
+            scan(text, window, line -> lines.add(line.decode()));
+            assertEquals("window " + window, expected, lines);
+        }
+        // and the same for every buffer size when it's read from a stream
+        for (int chunk = 1; chunk <= text.length() + 1; chunk++) {
+            List<String> lines = new ArrayList<>();
+            MappedLineScanner.scan(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), chunk,
+                    line -> lines.add(line.decode()));
+            assertEquals("chunk " + chunk, expected, lines);
+        }
+    }
+
+    private static void scan(String text, int window, MappedLineScanner.LineConsumer consumer) throws IOException {
+        File file = File.createTempFile("scan", ".txt");
+        try {
+            Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MappedLineScanner.scan(channel, window, consumer);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
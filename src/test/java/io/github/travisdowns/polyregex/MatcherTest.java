@@ -1,10 +1,13 @@
 package io.github.travisdowns.polyregex;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import org.junit.Test;
@@ -13,6 +16,7 @@ import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameter;
 import org.junit.runners.Parameterized.Parameters;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 
 import io.github.travisdowns.polyregex.BackrefMatcher;
@@ -27,7 +31,15 @@ public class MatcherTest {
         List<Object[]> all = ImmutableList.of(
                 params("Original",      s -> new OriginalMatcher(s)),
                 params("Backref-lazy",  s -> new BackrefMatcher(s, false)), // lazy  subNFA creation
-                params("Backref-eager", s -> new BackrefMatcher(s, true))   // eager subNFA creation
+                params("Backref-eager", s -> new BackrefMatcher(s, true)),  // eager subNFA creation
+                params("Backref-eager-parallel", s -> new BackrefMatcher(s, true, 4)),  // built on 4 threads
+                params("Pike",          s -> new PikeMatcher(s)),
+                params("Backtrack",     s -> new BacktrackMatcher(s)),
+                // the hashed memo even without backrefs, as used when there are too many keys for a bitset
+                params("Backtrack-hashed", s -> new BacktrackMatcher(s, ParserBase.doParse(s), 0)),
+                params("LazyDFA",       s -> new LazyDFAMatcher(s)),
+                params("LazyDFA-tiny",  s -> new LazyDFAMatcher(s, 300)), // constantly flushed, falls back to the NFA
+                params("Auto",          s -> Planner.newMatcher(s))
                 );
         String testonly = System.getProperty("MatcherTest.matcher");
         if (testonly != null) {
@@ -56,6 +68,42 @@ public class MatcherTest {
         return m.matches(text);
     }
 
+    /**
+     * find pattern in text, checking that it agrees with matching the pattern wrapped in .* and with finding it in a
+     * CharSequence which isn't a String
+     */
+    boolean find(String pattern, String text) {
+        boolean found = matcherFor(pattern).find(text);
+        assertEquals(matches(".*" + pattern + ".*", text), found);
+        assertEquals("find over a CharSequence", found, matcherFor(pattern).find(new StringBuilder(text)));
+        return found;
+    }
+
+    /**
+     * check findResult from every position in text against the leftmost-longest match, found by trying every span
+     * with java.util.regex
+     */
+    void checkFindResult(String pattern, String text) {
+        Matcher m = matcherFor(pattern);
+        java.util.regex.Matcher expected = Pattern.compile(pattern).matcher(text);
+        for (int from = 0; from <= text.length(); from++) {
+            CaptureResult actual = m.findResult(new StringBuilder(text), from);
+            assertEquals(pattern + " in " + text + " from " + from, leftmostLongest(expected, from, text.length()),
+                    actual == null ? null : actual.start() + "-" + actual.end());
+        }
+    }
+
+    private static String leftmostLongest(java.util.regex.Matcher m, int from, int length) {
+        for (int start = from; start <= length; start++) {
+            for (int end = length; end >= start; end--) {
+                if (m.region(start, end).matches()) {
+                    return start + "-" + end;
+                }
+            }
+        }
+        return null;
+    }
+
 	@Test
 	public void emptyString() {
 		assertTrue(matches("", ""));
@@ -125,7 +173,7 @@ public class MatcherTest {
 	
 	@Test
 	public void testParensStar2() {
-	    if (!name.equals("Backref-eager")) { // too slow with BR eager matcher
+	    if (!name.startsWith("Backref-eager")) { // too slow with BR eager matcher
 	        assertTrue (matches("((ab)*(cdef)*)*", "abababcdefcdefababcdef"));          
 	    }
 	}
@@ -135,6 +183,43 @@ public class MatcherTest {
 		assertTrue (matches("(a)(b)", "ab"));
 	}
 	
+	@Test
+	public void testFind() {
+	    assertTrue (find("", ""));
+	    assertTrue (find("", "abc"));
+	    assertTrue (find("b", "abc"));
+	    assertFalse(find("d", "abc"));
+	    assertTrue (find("ab*c", "xxabbbcxx"));
+	    assertFalse(find("ab*c", "xxabbbdxx"));
+	    assertTrue (find("(ab|cd)+e", "xxabcdabexx"));
+	    assertTrue (find("a.c", "zzzabc"));
+	    assertFalse(find("a.c", "zzzab"));
+	    assertTrue (find("aab", "aaab")); // the second match attempt is the one that succeeds
+	    assertTrue (find(".*x", "abx"));
+	    // the match is found long before the end of the text
+	    assertTrue (find("ab", "ab" + Strings.repeat("c", 10000)));
+	}
+
+	@Test
+	public void testFindResult() {
+	    checkFindResult("", "ab");
+	    checkFindResult("b", "abcb");
+	    checkFindResult("a*", "baab");
+	    checkFindResult("ab*c", "xabbcacx");
+	    checkFindResult("(a|b)*c", "abxbacbc");
+	    checkFindResult("abcd|c", "xabcdc");
+	    checkFindResult("(a|ab)(c|bcd)", "abcdabc");
+	    checkFindResult("x.*y", "axbyyxz");
+	    checkFindResult("ab.*", "xabyab");
+	    checkFindResult(".*ab", "xabyabz");
+	    checkFindResult(".*ab.*", "xaby");
+	    checkFindResult("(a)(b)(c)(d)(e)(f)(g)(h)(i)(j)", "xabcdefghij");
+	    if (!name.startsWith("LazyDFA") && !name.equals("Original")) { // no backrefs
+	        checkFindResult("(.)\\1", "abccdd");
+	        checkFindResult("(dogs|cats).*\\1", "cats dogs cats");
+	    }
+	}
+
 	@Test
 	public void testQuestion() {
 	    assertTrue (matches("a?", ""));
@@ -142,4 +227,24 @@ public class MatcherTest {
 	    assertFalse(matches("a?", "aa"));
 	}
 
+	/**
+	 * A long chain of SPLIT states, which must be handled without recursion since
+	 * we run it on a thread with a small stack.
+	 */
+	@Test
+	public void testDeepChainSmallStack() throws Exception {
+	    String pattern = Strings.repeat("a?", 20000);
+	    AtomicReference<Object> result = new AtomicReference<>();
+	    Thread t = new Thread(null, () -> {
+	        try {
+	            result.set(matches(pattern, "aaaa") && !matches(pattern, "b"));
+	        } catch (Throwable e) {
+	            result.set(e);
+	        }
+	    }, "small-stack", 256 * 1024);
+	    t.start();
+	    t.join();
+	    assertEquals(Boolean.TRUE, result.get());
+	}
+
 }
@@ -0,0 +1,100 @@
+package io.github.travisdowns.polyregex;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+
+import org.junit.Test;
+
+public class PikeSessionTest {
+
+    private static final String[][] CASES = {
+            { "abc", "abc" },
+            { "abc", "abd" },
+            { "a*b", "aaaab" },
+            { "(a|b)*c", "ababbc" },
+            { "(.*)-\\1", "abc-abc" },
+            { "(.*)-\\1", "abc-abd" },
+            { "(a*)(b*)\\2\\1", "aabbbbaa" },
+            { "(a*)(b*)\\2\\1", "aabbbaa" },
+            { "((.)\\2)*", "aabbccdd" },
+            { "(dogs|cats) like \\1", "cats like cats" },
+            { "(dogs|cats) like \\1", "cats like dogs" },
+            { "", "" },
+            { "a?", "" },
+    };
+
+    @Test
+    public void testChunks() {
+        for (String[] c : CASES) {
+            PikeMatcher m = new PikeMatcher(c[0]);
+            boolean expected = m.matches(c[1]);
+            for (int chunk = 1; chunk <= c[1].length() + 1; chunk++) {
+                PikeMatcher.Session session = m.newSession();
+                char[] chars = c[1].toCharArray();
+                for (int i = 0; i < chars.length; i += chunk) {
+                    session.feed(chars, i, Math.min(chunk, chars.length - i));
+                }
+                assertEquals(c[0] + " against " + c[1] + " in chunks of " + chunk, expected, session.finish());
+            }
+        }
+    }
+
+    @Test
+    public void testCharSequences() throws IOException {
+        PikeMatcher m = new PikeMatcher("(.*)-\\1");
+        PikeMatcher.Session session = m.newSession();
+        session.feed("abc");
+        session.feed(CharBuffer.wrap("x-abcx".toCharArray(), 1, 4));
+        assertEquals(7, session.position());
+        assertTrue(session.finish());
+
+        assertTrue(m.matches(new StringReader("abc-abc")));
+        assertFalse(m.matches(new StringReader("abc-abd")));
+    }
+
+    @Test
+    public void testWindowTrimmed() {
+        PikeMatcher m = new PikeMatcher("((.)\\2)*");
+        PikeMatcher.Session session = m.newSession();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            char c = (char)('a' + i % 26);
+            sb.append(c).append(c);
+        }
+        String chunk = sb.toString();
+        for (int i = 0; i < 200; i++) {
+            session.feed(chunk);
+            // only the last pair can still be referenced
+            assertTrue(session.windowSize() <= chunk.length());
+        }
+        // the pool is compacted, rather than growing with the input
+        assertTrue(session.poolSize() < 2 << 16);
+        assertTrue(session.finish());
+    }
+
+    @Test
+    public void testNoBackrefs() {
+        PikeMatcher.Session session = new PikeMatcher("(ab)*").newSession();
+        for (int i = 0; i < 100; i++) {
+            session.feed("abab");
+        }
+        assertEquals(0, session.windowSize());
+        assertTrue(session.finish());
+    }
+
+    @Test
+    public void testDead() {
+        PikeMatcher.Session session = new PikeMatcher("a.*").newSession();
+        session.feed("b");
+        assertTrue(session.isDead());
+        session.feed("aaa");
+        assertFalse(session.finish());
+        try {
+            session.feed("a");
+            fail();
+        } catch (IllegalStateException expected) {}
+    }
+}
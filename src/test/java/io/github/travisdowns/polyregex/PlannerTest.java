@@ -0,0 +1,55 @@
+package io.github.travisdowns.polyregex;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import io.github.travisdowns.polyregex.LiteralMatcher.Kind;
+import io.github.travisdowns.polyregex.Planner.Engine;
+import io.github.travisdowns.polyregex.Planner.Plan;
+
+public class PlannerTest {
+
+    @Test
+    public void testLiterals() {
+        checkLiteral("",           Kind.EXACT,    "");
+        checkLiteral("abc",        Kind.EXACT,    "abc");
+        checkLiteral("(ab)c",      Kind.EXACT,    "abc");
+        checkLiteral("abc.*",      Kind.PREFIX,   "abc");
+        checkLiteral(".*abc",      Kind.SUFFIX,   "abc");
+        checkLiteral(".*(abc).*",  Kind.CONTAINS, "abc");
+        checkLiteral(".*",         Kind.SUFFIX,   "");
+
+        Matcher m = Planner.newMatcher(".*cat.*");
+        assertTrue (m.matches("concatenate"));
+        assertFalse(m.matches("dog"));
+    }
+
+    @Test
+    public void testEngines() {
+        assertEquals(Engine.DFA,       Planner.plan("a*b").engine);
+        assertEquals(Engine.DFA,       Planner.plan(".*(a|b)c.*").engine);
+        assertEquals(Engine.DFA,       Planner.plan("abc.*d").engine);
+        assertEquals(Engine.BACKTRACK, Planner.plan("(.)\\1").engine);
+        assertEquals(Engine.BACKTRACK, Planner.plan(".*(dogs|cats).*\\1.*").engine);
+        assertEquals(Engine.PIKE,      Planner.plan("(.*)\\1").engine);
+        assertEquals(Engine.PIKE,      Planner.plan("(a)(b*)\\1\\2").engine);
+    }
+
+    @Test
+    public void testGroupLengths() {
+        assertArrayEquals(new int[]{4},      Planner.plan(".*(dogs|cats).*\\1.*").maxGroupLengths);
+        assertArrayEquals(new int[]{3, 2},   Planner.plan("(a?b?c?)(x|yz)\\1\\2").maxGroupLengths);
+        assertArrayEquals(new int[]{1, -1},  Planner.plan("(a)*(b+)\\1\\2").maxGroupLengths);
+        // a backref inside the group makes it unbounded
+        assertArrayEquals(new int[]{-1, 1},  Planner.plan("((a)\\2)\\1").maxGroupLengths);
+        assertEquals(0, Planner.plan("(a)(b)").referencedGroups());
+    }
+
+    private void checkLiteral(String pattern, Kind kind, String literal) {
+        Plan plan = Planner.plan(pattern);
+        assertEquals(plan.toString(), Engine.LITERAL, plan.engine);
+        assertEquals(kind, plan.literalKind);
+        assertEquals(literal, plan.literal);
+    }
+}
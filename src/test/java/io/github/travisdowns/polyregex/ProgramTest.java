@@ -0,0 +1,76 @@
+package io.github.travisdowns.polyregex;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import io.github.travisdowns.polyregex.State.Type;
+
+public class ProgramTest {
+
+    @Test
+    public void testMatchIsZero() {
+        Program p = programFor("");
+        assertEquals(1, p.size());
+        assertEquals(0, p.start);
+        assertEquals(Program.MATCH, p.op[0]);
+    }
+
+    @Test
+    public void testCompileMirrorsGraph() {
+        checkCompile("a");
+        checkCompile("a*b");
+        checkCompile("(a|b)?(a|b)z");
+        checkCompile("((.x)\\2)*z");
+    }
+
+    @Test
+    public void testLiveness() {
+        Program p = programFor("(.)(.)\\1\\2x*");
+        for (int s = 0; s < p.size(); s++) {
+            if (p.op[s] == Program.BACKREF) {
+                // \2 is always live at a backref, \1 only before it has been matched
+                int expected = p.data[s] == 1 ? 0b11 : 0b10;
+                assertEquals(expected, p.live[s]);
+            } else if (p.op[s] == Program.CHAR || p.op[s] == Program.MATCH) {
+                assertEquals(0, p.live[s]); // only the trailing x* and MATCH
+            }
+        }
+        assertEquals(0, p.live[p.start]);
+        assertEquals(0, programFor("(a)b").live[0]);
+    }
+
+    @Test
+    public void testWithLive() {
+        CaptureState cs = new CaptureState(new int[]{1, 2}, new int[]{3, -1}, 5);
+        assertSame(cs, cs.withLive(0b11));
+        assertEquals(new CaptureState(new int[]{-1, 2}, new int[]{-1, -1}, 5), cs.withLive(0b10));
+        CaptureState unset = cs.withLive(0);
+        assertEquals(new CaptureState(new int[]{-1, -1}, new int[]{-1, -1}, 5), unset);
+        assertSame(unset, unset.withLive(0));
+    }
+
+    /** check that every state in the graph has an entry in the program with the same contents */
+    private void checkCompile(String pattern) {
+        State start = ParserBase.doParse(pattern);
+        State.assignIds(start);
+        Program p = Program.compile(start);
+        assertEquals(start.id, p.start);
+        assertEquals(State.allStates(start).size(), p.size());
+        for (State s : State.allStates(start)) {
+            assertEquals(s.type, p.type(s.id));
+            assertEquals(s.type.ordinal(), p.op[s.id]);
+            assertEquals(s.c, p.data[s.id]);
+            assertEquals(s.out  == null ? Program.NONE : s.out .s.id, p.out [s.id]);
+            assertEquals(s.out1 == null ? Program.NONE : s.out1.s.id, p.out1[s.id]);
+        }
+        assertEquals(pattern.contains("\\"), p.hasBackrefs());
+        assertTrue(p.toString().contains(Type.MATCH.toString()));
+    }
+
+    private static Program programFor(String pattern) {
+        State start = ParserBase.doParse(pattern);
+        State.assignIds(start);
+        return Program.compile(start);
+    }
+}
@@ -0,0 +1,53 @@
+package io.github.travisdowns.polyregex;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SparseSetTest {
+
+    @Test
+    public void testAddContains() {
+        SparseSet set = new SparseSet(10);
+        assertEquals(0, set.size());
+        assertFalse(set.contains(0));
+        assertFalse(set.contains(9));
+
+        assertTrue (set.add(5));
+        assertFalse(set.add(5));
+        assertTrue (set.add(0));
+        assertTrue (set.add(9));
+
+        assertEquals(3, set.size());
+        assertTrue (set.contains(0));
+        assertTrue (set.contains(5));
+        assertTrue (set.contains(9));
+        assertFalse(set.contains(1));
+    }
+
+    @Test
+    public void testInsertionOrder() {
+        SparseSet set = new SparseSet(10);
+        set.add(7);
+        set.add(3);
+        set.add(7);
+        set.add(1);
+        assertArrayEquals(new int[]{7, 3, 1}, set.toArray());
+        assertEquals(3, set.get(1));
+    }
+
+    @Test
+    public void testClear() {
+        SparseSet set = new SparseSet(4);
+        set.add(1);
+        set.add(2);
+        set.clear();
+        assertEquals(0, set.size());
+        assertFalse(set.contains(1));
+        assertFalse(set.contains(2));
+        // stale entries in the sparse array must not make anything look present
+        assertTrue(set.add(2));
+        assertFalse(set.contains(1));
+        assertArrayEquals(new int[]{2}, set.toArray());
+    }
+}
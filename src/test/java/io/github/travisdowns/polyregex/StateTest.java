@@ -14,6 +14,7 @@ import io.github.travisdowns.polyregex.BackrefMatcher;
 import io.github.travisdowns.polyregex.CaptureState;
 import io.github.travisdowns.polyregex.RegexParser;
 import io.github.travisdowns.polyregex.State;
+import io.github.travisdowns.polyregex.State.Type;
 
 public class StateTest {
 
@@ -57,6 +58,19 @@ public class StateTest {
         checkBackrefMatch("abc\\1def", "abcdef",   0, 0);
     }
 
+    @Test
+    public void testRemoveUnreferencedGroups() {
+        State start = State.removeUnreferencedGroups(stateFor("((a)(b))(c)\\3\\4"));
+        assertArrayEquals(new int[]{1, 2}, State.referencedGroups(start));
+        assertEquals(2, State.groupCount(start));
+        assertEquals(4, State.allStates(start).stream().filter(s -> s.type == Type.FORWARD).count());
+
+        // no backrefs, so only the outer group 0 is left
+        start = State.removeUnreferencedGroups(stateFor("((a))|(b)"));
+        assertEquals(0, State.groupCount(start));
+        assertEquals(2, State.allStates(start).stream().filter(State::isParen).count());
+    }
+
     private void checkBackrefMatch(String pattern, String text, int i, int j) {
         State start = stateFor(pattern);
         State.expandBackrefs(start, text,
@@ -0,0 +1,100 @@
+package io.github.travisdowns.polyregex;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class Utf8LoweringTest {
+
+    private static final List<String> PATTERNS = Arrays.asList("café", "caf.", "c.*é", "..", "(.)\\1", "(é|e)x\\1",
+            "a.b", ".*", "(ü+)-\\1", "日本.*", "x(..)y\\1",
+            // replaced states next to each other
+            "日本語", "日.語", "é.é", "日本語.", "テキ.ト", "(日.)\\1");
+
+    private static final List<String> TEXTS = Arrays.asList("", "café", "cafe", "cafée", "éé", "ée", "exe", "éxé",
+            "éxe", "a€b", "a😀b", "ab", "üü-üü", "üü-ü", "日本語", "x日本y日本", "xa€ya€", "xa€ya€z", "😀",
+            "日x語", "日本語テキスト", "é😀é", "éé", "日本日本", "日x日x");
+
+    @Test
+    public void testMatchers() {
+        check("dfa", p -> new LazyDFAMatcher(p, State.lowerToUtf8(ParserBase.doParse(p))), false);
+        check("pike", p -> new PikeMatcher(p, State.lowerToUtf8(ParserBase.doParse(p))), true);
+        check("backtrack", p -> new BacktrackMatcher(p, State.lowerToUtf8(ParserBase.doParse(p))), true);
+        check("backref", p -> new BackrefMatcher(p, State.lowerToUtf8(ParserBase.doParse(p))), true);
+        check("planned", p -> Planner.plan(p).newUtf8Matcher(), true);
+    }
+
+    @Test
+    public void testLowering() {
+        State start = State.lowerToUtf8(ParserBase.doParse("é"));
+        List<State> states = State.allStates(start);
+        assertTrue(states.stream().anyMatch(s -> s.type == State.Type.CHAR && s.c == 0xC3));
+        assertTrue(states.stream().anyMatch(s -> s.type == State.Type.CHAR && s.c == 0xA9));
+        assertFalse(states.stream().anyMatch(s -> s.type == State.Type.CHAR && s.c == 'é'));
+
+        // invalid UTF-8 never matches .
+        Matcher m = new PikeMatcher(".", State.lowerToUtf8(ParserBase.doParse(".")));
+        assertFalse(m.matches("Ã"));
+        assertFalse(m.matches("ÿ"));
+        assertTrue(m.matches(bytes("é")));
+        // overlong encodings, surrogates and code points past U+10FFFF are ill-formed too
+        for (int[] b : new int[][] { { 0xC0, 0x80 }, { 0xC1, 0xBF }, { 0xE0, 0x80, 0x80 }, { 0xE0, 0x9F, 0xBF },
+                { 0xED, 0xA0, 0x80 }, { 0xED, 0xBF, 0xBF }, { 0xF0, 0x80, 0x80, 0x80 }, { 0xF0, 0x8F, 0xBF, 0xBF },
+                { 0xF4, 0x90, 0x80, 0x80 }, { 0xF5, 0x80, 0x80, 0x80 } }) {
+            assertFalse(Arrays.toString(b), m.matches(chars(b)));
+            assertFalse(Arrays.toString(b), new PikeMatcher("d.o", State.lowerToUtf8(ParserBase.doParse("d.o")))
+                    .find("d" + chars(b) + "o"));
+        }
+        // the lowest and highest well-formed sequences of each length
+        for (int cp : new int[] { 0, 0x7F, 0x80, 0x7FF, 0x800, 0xD7FF, 0xE000, 0xFFFF, 0x10000, 0x10FFFF }) {
+            assertTrue(Integer.toHexString(cp), m.matches(bytes(new String(Character.toChars(cp)))));
+        }
+    }
+
+    @Test
+    public void testSpans() {
+        // the spans are found over the lowered graph, so they are of bytes
+        BackrefMatcher m = new BackrefMatcher("(日.)語", State.lowerToUtf8(ParserBase.doParse("(日.)語")),
+                new int[]{ 1 });
+        CaptureResult r = m.findResult(bytes("x日本語"), 0);
+        assertEquals(bytes("日本語"), r.group());
+        assertEquals(bytes("日本"), r.group(1));
+        assertEquals(1, r.start());
+        assertNull(m.findResult(bytes("日本"), 0));
+    }
+
+    /** check every pattern against every text, as UTF-8 bytes, against java.util.regex on the text */
+    private static void check(String name, Function<String, Matcher> factory, boolean backrefs) {
+        for (String pattern : PATTERNS) {
+            if (!backrefs && pattern.contains("\\")) {
+                continue;
+            }
+            Matcher m = factory.apply(pattern);
+            for (String text : TEXTS) {
+                String msg = name + ": " + pattern + " against " + text;
+                assertEquals(msg, Pattern.matches(pattern, text), m.matches(bytes(text)));
+                assertEquals(msg + " (find)", Pattern.compile(pattern).matcher(text).find(), m.find(bytes(text)));
+            }
+        }
+    }
+
+    /** the given bytes, one char per byte */
+    private static String chars(int[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (int b : bytes) {
+            sb.append((char)b);
+        }
+        return sb.toString();
+    }
+
+    /** the UTF-8 bytes of text, one char per byte */
+    private static String bytes(String text) {
+        return new String(text.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+    }
+}